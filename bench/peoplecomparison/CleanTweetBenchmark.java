@@ -0,0 +1,111 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Compares TwitterUtil.cleanTweet against the old multi-pass version it replaced.
+ *
+ * First checks both give the same output on every feed in the tweets directory and on the synthetic tweets, then times them
+ * over those tweets, made from that corpus with URLs, users and "RT" added back in (the cached feeds have already been cleaned).
+ * They only differ around repeated users: the old version could leave a double space or a user it had trimmed the space from,
+ * or the rest of a longer URL or handle it had removed a copy from.
+ *
+ * Run from the project root with the src, bench and lib jars on the classpath:
+ *   java peoplecomparison.CleanTweetBenchmark [tweetDirectory] [seconds]
+ */
+public class CleanTweetBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        String directory = (args.length > 0) ? args[0] : "./tweets/";
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        // Check we get the same output on our existing corpus
+        List<String> feeds = new ArrayList<String>();
+        for (File file : new File(directory).listFiles()) {
+            if (file.getName().endsWith("_Tweets.txt")) feeds.add(new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8")));
+        }
+        int mismatches = 0;
+        for (String feed : feeds) {
+            if (!legacyCleanTweet(feed).equals(TwitterUtil.cleanTweet(feed))) mismatches++;
+        }
+        System.out.println(feeds.size() + " feeds checked, " + mismatches + " differ from the old cleanTweet");
+
+        List<String> tweets = buildTweets(feeds, new Random(42));
+        mismatches = 0;
+        for (String tweet : tweets) {
+            if (!legacyCleanTweet(tweet).equals(TwitterUtil.cleanTweet(tweet))) mismatches++;
+        }
+        System.out.println(tweets.size() + " synthetic tweets, " + mismatches + " differ from the old cleanTweet");
+
+        // Warm up both, then time them
+        time("legacy", tweets, true, 1);
+        time("single pass", tweets, false, 1);
+        double legacy = time("legacy", tweets, true, seconds);
+        double singlePass = time("single pass", tweets, false, seconds);
+        System.out.printf("Speedup: %.1fx%n", singlePass / legacy);
+    }
+
+    /* Runs one of the cleaners over the tweets repeatedly for a number of seconds, returning tweets per second */
+    private static double time(String label, List<String> tweets, boolean legacy, int seconds) {
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        long start = System.nanoTime();
+        long count = 0;
+        int blackhole = 0;
+        while (System.nanoTime() < deadline) {
+            for (String tweet : tweets) {
+                blackhole += (legacy ? legacyCleanTweet(tweet) : TwitterUtil.cleanTweet(tweet)).length();
+            }
+            count += tweets.size();
+        }
+        double perSecond = count / ((System.nanoTime() - start) / 1e9);
+        System.out.printf("%-12s %,.0f tweets/s (%d)%n", label, perSecond, blackhole & 1);
+        return perSecond;
+    }
+
+    /* Chops the corpus into tweet sized pieces and puts back the kind of things cleanTweet has to remove */
+    static List<String> buildTweets(List<String> feeds, Random random) {
+        List<String> tweets = new ArrayList<String>();
+        for (String feed : feeds) {
+            for (String sentence : feed.split("(?<=[.!?:]) ")) {
+                StringBuilder tweet = new StringBuilder();
+                int kind = random.nextInt(4);
+                if (kind == 0) tweet.append("RT @user").append(random.nextInt(1000)).append(": ");
+                else if (kind == 1) tweet.append("@reply_").append(random.nextInt(1000)).append(' ');
+                tweet.append(sentence);
+                if (random.nextBoolean()) tweet.append(" via @someone");
+                for (int urls = random.nextInt(3); urls > 0; urls--) tweet.append(" http://t.co/").append(Integer.toHexString(random.nextInt()));
+                tweets.add(tweet.toString());
+            }
+        }
+        return tweets;
+    }
+
+    /* The version of TwitterUtil.cleanTweet before it was rewritten as a single pass, kept here as the reference */
+    static String legacyCleanTweet(String tweetText)
+    {
+        // Remove URLs
+        while (tweetText.contains("http")) {
+            int indexOfHttp = tweetText.indexOf("http");
+            int endPoint = (tweetText.indexOf(" ", indexOfHttp) != -1) ? tweetText.indexOf(" ", indexOfHttp) : tweetText.length();
+            String url = tweetText.substring(indexOfHttp, endPoint);
+            tweetText = tweetText.replace(url,"");
+        }
+
+        // Remove Users
+        String patternStr = "(?:\\s|\\A)[@]+([A-Za-z0-9-_]+)";
+        Pattern pattern = Pattern.compile(patternStr);
+        Matcher matcher = pattern.matcher(tweetText);
+        while (matcher.find()) {
+            tweetText = tweetText.replaceAll(matcher.group(),"").trim();
+        }
+
+        // Remove "RT:"
+        tweetText = tweetText.replaceAll("RT:","").trim();
+
+        return tweetText;
+    }
+}
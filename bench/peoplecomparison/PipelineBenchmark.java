@@ -0,0 +1,318 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Benchmarks each stage of the comparison pipeline at a range of corpus sizes, so we can tell when a change
+ * to TwitterUtil, Cache, MalletUtil or GraphBuilder makes a run slower.
+ *
+ * Each stage is set up once per corpus size, run for a number of warmup iterations and then timed over a number
+ * of measured iterations. Results are written as a tab separated baseline file (stage, users, ms per iteration,
+ * operations per second) which a later run can be compared against with --compare.
+ *
+ * Run from the project root with the src, bench and lib jars on the classpath:
+ *   java peoplecomparison.PipelineBenchmark [--sizes 20,1000,100000] [--stages clean,feed,pipe,lda,similarity,graph,layout,write,export]
+ *        [--warmup 2] [--iterations 5] [--lda-iterations 20] [--words 1500] [--baseline bench.tsv] [--compare old.tsv]
+ *
+ * The bundled 20 user tweets directory is used as is, bigger sizes are synthetic (see SyntheticCorpus).
+ * The lda, similarity and graph stages are quadratic or close to it, so expect them to take a while above a few thousand users.
+ */
+public class PipelineBenchmark {
+
+    private static final String TWEET_DIRECTORY = "./tweets/";
+    // Anything slower than this compared to the baseline gets flagged
+    private static final double REGRESSION_THRESHOLD = 1.1;
+
+    /* One stage of the pipeline. run() does one iteration and returns how many operations it did (tweets, users, pairs etc.) */
+    abstract static class Stage {
+        final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void setUp(SyntheticCorpus corpus) throws Exception {
+        }
+
+        abstract long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] sizes = parseInts(get(options, "sizes", "20,1000"));
+        List<String> stageNames = Arrays.asList(get(options, "stages", "clean,feed,pipe,lda,similarity,graph,layout,write,export").split(","));
+        int warmup = Integer.parseInt(get(options, "warmup", "2"));
+        int iterations = Integer.parseInt(get(options, "iterations", "5"));
+        final int ldaIterations = Integer.parseInt(get(options, "lda-iterations", "20"));
+        int words = Integer.parseInt(get(options, "words", "1500"));
+        String baselineFile = get(options, "baseline", "bench.tsv");
+
+        List<String> results = new ArrayList<String>();
+        for (int size : sizes) {
+            SyntheticCorpus corpus = SyntheticCorpus.create(TWEET_DIRECTORY, size, words, 42);
+            try {
+                for (Stage stage : buildStages(ldaIterations)) {
+                    if (!stageNames.contains(stage.name)) continue;
+                    results.add(measure(stage, corpus, size, warmup, iterations));
+                }
+            } finally {
+                corpus.delete();
+            }
+        }
+
+        writeBaseline(baselineFile, results);
+        if (options.containsKey("compare")) compare(options.get("compare"), results);
+    }
+
+    /* The stages, in pipeline order. Later stages build whatever they need from the earlier ones in setUp */
+    private static List<Stage> buildStages(final int ldaIterations) {
+        List<Stage> stages = new ArrayList<Stage>();
+
+        stages.add(new Stage("clean") {
+            List<String> tweets;
+            void setUp(SyntheticCorpus corpus) {
+                tweets = CleanTweetBenchmark.buildTweets(corpus.sourceFeeds, new Random(42));
+            }
+            long run() {
+                int blackhole = 0;
+                for (String tweet : tweets) blackhole += TwitterUtil.cleanTweet(tweet).length();
+                return tweets.size() + (blackhole & 0);
+            }
+        });
+
+        stages.add(new Stage("feed") {
+            Cache cache;
+            List<Person> people;
+            void setUp(SyntheticCorpus corpus) {
+                cache = newCache(corpus);
+                people = newPeople(corpus);
+            }
+            long run() {
+                long chars = 0;
+                for (Person person : people) chars += cache.getTwitterFeed(person).length();
+                return people.size() + (chars & 0);
+            }
+        });
+
+        stages.add(new Stage("pipe") {
+            Cache cache;
+            List<Person> people;
+            void setUp(SyntheticCorpus corpus) {
+                cache = newCache(corpus);
+                people = newPeople(corpus);
+            }
+            long run() {
+                InstanceList instances = new InstanceList(MalletUtil.getPipe());
+                for (Person person : people) instances.addThruPipe(new Instance(cache.getTwitterFeedView(person), null, person.getName(), null));
+                return instances.size();
+            }
+        });
+
+        stages.add(new Stage("lda") {
+            InstanceList instances;
+            void setUp(SyntheticCorpus corpus) {
+                instances = buildInstances(corpus);
+            }
+            long run() {
+                MalletUtil.doTopicModel(instances, 0.6, ldaIterations);
+                return ldaIterations; // So the result is per sampling iteration
+            }
+        });
+
+        stages.add(new Stage("similarity") {
+            ParallelTopicModel model;
+            void setUp(SyntheticCorpus corpus) {
+                model = MalletUtil.doTopicModel(buildInstances(corpus), 0.6, ldaIterations);
+            }
+            long run() {
+                int n = model.getData().size();
+                MalletUtil.findSimilarities(model);
+                return (long) n * (n - 1) / 2;
+            }
+        });
+
+        stages.add(new Stage("graph") {
+            SimilarityMatrix similarities;
+            List<String> names;
+            void setUp(SyntheticCorpus corpus) {
+                similarities = MalletUtil.findSimilarities(MalletUtil.doTopicModel(buildInstances(corpus), 0.6, ldaIterations));
+                names = corpus.names;
+            }
+            long run() {
+                buildGraph(names, similarities);
+                return names.size();
+            }
+        });
+
+        stages.add(new Stage("layout") {
+            int numNodes;
+            int[] sources;
+            int[] targets;
+            double[] weights;
+            void setUp(SyntheticCorpus corpus) {
+                SimilarityMatrix similarities = MalletUtil.findSimilarities(MalletUtil.doTopicModel(buildInstances(corpus), 0.6, ldaIterations));
+                numNodes = similarities.size();
+                // The same edges buildGraph adds, without Gephi
+                EdgeList edges = sparsify(similarities);
+                sources = edges.getSources();
+                targets = edges.getTargets();
+                weights = edges.getWeights();
+            }
+            long run() {
+                ForceAtlas2Layout layout = new ForceAtlas2Layout(numNodes, sources, targets, weights);
+                layout.run();
+                return numNodes;
+            }
+        });
+
+        stages.add(new Stage("write") {
+            List<String> names;
+            EdgeList edges;
+            File output;
+            void setUp(SyntheticCorpus corpus) throws IOException {
+                names = corpus.names;
+                edges = sparsify(MalletUtil.findSimilarities(MalletUtil.doTopicModel(buildInstances(corpus), 0.6, ldaIterations)));
+                output = File.createTempFile("peoplecomparison-bench", ".gexf");
+                output.deleteOnExit();
+            }
+            long run() throws IOException {
+                // Headless, so no layout or rendering
+                GraphWriter.export(GraphWriter.Format.GEXF, output, names, edges, null);
+                return edges.size();
+            }
+        });
+
+        stages.add(new Stage("export") {
+            GraphBuilder builder;
+            File output;
+            void setUp(SyntheticCorpus corpus) throws IOException {
+                builder = buildGraph(corpus.names, MalletUtil.findSimilarities(MalletUtil.doTopicModel(buildInstances(corpus), 0.6, ldaIterations)));
+                output = File.createTempFile("peoplecomparison-bench", ".pdf");
+                output.deleteOnExit();
+            }
+            long run() throws IOException {
+                // Includes the layout, which export runs first
+                builder.export("pdf", output.getPath());
+                return 1;
+            }
+        });
+
+        return stages;
+    }
+
+    /* Sets up, warms up and times a stage, returning its result line */
+    private static String measure(Stage stage, SyntheticCorpus corpus, int size, int warmup, int iterations) throws Exception {
+        PrintStream console = System.out;
+        // The stages print a lot (a line per edge, per document etc.), which we don't want to time or see
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        long totalNanos = 0;
+        long totalOps = 0;
+        try {
+            stage.setUp(corpus);
+            for (int i = 0; i < warmup; i++) stage.run();
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                totalOps += stage.run();
+                totalNanos += System.nanoTime() - start;
+            }
+        } finally {
+            System.setOut(console);
+        }
+        double msPerIteration = totalNanos / 1e6 / iterations;
+        double opsPerSecond = totalOps / (totalNanos / 1e9);
+        String line = String.format(Locale.US, "%s\t%d\t%.3f\t%.1f", stage.name, size, msPerIteration, opsPerSecond);
+        System.out.printf(Locale.US, "%-12s %8d users %12.3f ms/iteration %,16.1f ops/s%n", stage.name, size, msPerIteration, opsPerSecond);
+        return line;
+    }
+
+    private static void writeBaseline(String fileName, List<String> results) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(fileName));
+        out.println("# stage\tusers\tms_per_iteration\tops_per_second");
+        for (String line : results) out.println(line);
+        out.close();
+        System.out.println("Baseline written to " + fileName);
+    }
+
+    /* Prints how each result compares to the same stage and size in an earlier baseline file */
+    private static void compare(String fileName, List<String> results) throws IOException {
+        Map<String, Double> previous = new HashMap<String, Double>();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#")) continue;
+            String[] fields = line.split("\t");
+            previous.put(fields[0] + "\t" + fields[1], Double.parseDouble(fields[2]));
+        }
+        reader.close();
+
+        System.out.println("\nCompared to " + fileName + " (ms per iteration, now/before)");
+        for (String result : results) {
+            String[] fields = result.split("\t");
+            Double before = previous.get(fields[0] + "\t" + fields[1]);
+            if (before == null) continue;
+            double ratio = Double.parseDouble(fields[2]) / before;
+            System.out.printf(Locale.US, "%-12s %8s users %6.2fx%s%n", fields[0], fields[1], ratio, (ratio > REGRESSION_THRESHOLD) ? "  <-- SLOWER" : "");
+        }
+    }
+
+    private static Cache newCache(SyntheticCorpus corpus) {
+        return new Cache(corpus.directory.getPath() + File.separator);
+    }
+
+    private static List<Person> newPeople(SyntheticCorpus corpus) {
+        List<Person> people = new ArrayList<Person>();
+        for (String name : corpus.names) people.add(new Person(name));
+        return people;
+    }
+
+    private static InstanceList buildInstances(SyntheticCorpus corpus) {
+        Cache cache = newCache(corpus);
+        InstanceList instances = new InstanceList(MalletUtil.getPipe());
+        for (Person person : newPeople(corpus)) instances.addThruPipe(new Instance(cache.getTwitterFeedView(person), null, person.getName(), null));
+        return instances;
+    }
+
+    /* Builds the graph the same way PeopleComparison does */
+    private static GraphBuilder buildGraph(List<String> names, SimilarityMatrix similarities) {
+        GraphBuilder builder = new GraphBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            builder.setSize(names.get(i), names.size());
+            builder.setColor(names.get(i), 0, 0, 0.9f);
+        }
+        builder.addGraph(names, sparsify(similarities));
+        return builder;
+    }
+
+    private static EdgeList sparsify(SimilarityMatrix similarities) {
+        return GraphSparsifier.sparsify(similarities, GraphSparsifier.Method.K_NEAREST, 0.3, 5, 0.05);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Expected an option but got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String key, String defaultValue) {
+        return options.containsKey(key) ? options.get(key) : defaultValue;
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+}
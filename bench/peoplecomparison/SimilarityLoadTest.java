@@ -0,0 +1,223 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fires similarity and distance queries at a SimilarityService from several threads at once and reports the latency
+ * percentiles and throughput, so we can tell whether it still answers in milliseconds at a given size and load.
+ *
+ * Against a service that's already running (java peoplecomparison.SimilarityService), asking about the people it has:
+ *   java peoplecomparison.SimilarityLoadTest --url http://localhost:8642
+ * Or against one started here over random topic distributions for a synthetic number of people:
+ *   java peoplecomparison.SimilarityLoadTest --synthetic 100000 [--topics 20]
+ *
+ * Other options: [--requests 20000] [--warmup 2000] [--concurrency 8] [--k 10] [--distance-fraction 0.5] [--refresh-fraction 0]
+ * Refreshes go through Twitter and the topic inferencer, so they're only worth mixing in against a real service.
+ */
+public class SimilarityLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int requests = Integer.parseInt(get(options, "requests", "20000"));
+        int warmup = Integer.parseInt(get(options, "warmup", "2000"));
+        int concurrency = Integer.parseInt(get(options, "concurrency", "8"));
+        int k = Integer.parseInt(get(options, "k", "10"));
+        double distanceFraction = Double.parseDouble(get(options, "distance-fraction", "0.5"));
+        double refreshFraction = Double.parseDouble(get(options, "refresh-fraction", "0"));
+
+        SimilarityService service = null;
+        String url;
+        if (options.containsKey("synthetic")) {
+            int people = Integer.parseInt(options.get("synthetic"));
+            int topics = Integer.parseInt(get(options, "topics", "20"));
+            long start = System.currentTimeMillis();
+            service = new SimilarityService(syntheticNames(people), syntheticTopics(people, topics, new Random(42)), topics, SimilarityEngine.Measure.KL_DIVERGENCE);
+            int port = service.start(0, Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+            url = "http://localhost:" + port;
+            System.out.println("Started a service over " + people + " synthetic people in " + (System.currentTimeMillis() - start) + "ms");
+        } else {
+            url = get(options, "url", "http://localhost:" + SimilarityService.DEFAULT_PORT);
+        }
+
+        try {
+            List<String> names = fetchNames(url);
+            if (names.size() < 2) throw new IllegalStateException("Need at least two people to compare, the service has " + names.size());
+            System.out.println("Querying " + names.size() + " people at " + url + " with " + concurrency + " threads");
+
+            run(url, names, warmup, concurrency, k, distanceFraction, refreshFraction);
+            long start = System.nanoTime();
+            Results results = run(url, names, requests, concurrency, k, distanceFraction, refreshFraction);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            results.print(seconds);
+        } finally {
+            if (service != null) service.stop();
+        }
+    }
+
+    /* Latencies in nanoseconds, per kind of request */
+    private static class Results {
+        final Map<String, long[]> latencies = new TreeMap<String, long[]>();
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        final AtomicInteger errors = new AtomicInteger();
+
+        synchronized void add(String kind, long nanos) {
+            long[] kindLatencies = latencies.get(kind);
+            int count = counts.containsKey(kind) ? counts.get(kind) : 0;
+            if (kindLatencies == null || count == kindLatencies.length) {
+                kindLatencies = (kindLatencies == null) ? new long[1024] : Arrays.copyOf(kindLatencies, count * 2);
+                latencies.put(kind, kindLatencies);
+            }
+            kindLatencies[count] = nanos;
+            counts.put(kind, count + 1);
+        }
+
+        void print(double seconds) {
+            System.out.printf(Locale.US, "%-10s %8s %8s %8s %8s %8s %8s%n", "request", "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "mean ms");
+            long[] all = new long[0];
+            for (String kind : latencies.keySet()) {
+                long[] sorted = Arrays.copyOf(latencies.get(kind), counts.get(kind));
+                Arrays.sort(sorted);
+                printRow(kind, sorted);
+                int previous = all.length;
+                all = Arrays.copyOf(all, previous + sorted.length);
+                System.arraycopy(sorted, 0, all, previous, sorted.length);
+            }
+            Arrays.sort(all);
+            printRow("all", all);
+            System.out.printf(Locale.US, "%d requests in %.2fs, %.0f per second, %d errors%n", all.length, seconds, all.length / seconds, errors.get());
+        }
+
+        private static void printRow(String kind, long[] sorted) {
+            long total = 0;
+            for (long nanos : sorted) total += nanos;
+            System.out.printf(Locale.US, "%-10s %8d %8.3f %8.3f %8.3f %8.3f %8.3f%n", kind, sorted.length,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6, sorted.length == 0 ? 0 : total / 1e6 / sorted.length);
+        }
+
+        /* Nearest rank, in milliseconds */
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1e6;
+        }
+    }
+
+    private static Results run(final String url, final List<String> names, int requests, int concurrency, final int k,
+                               final double distanceFraction, final double refreshFraction) throws InterruptedException {
+        final Results results = new Results();
+        final AtomicInteger remaining = new AtomicInteger(requests);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < concurrency; t++) {
+            final Random random = new Random(42 + t);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        String a = names.get(random.nextInt(names.size()));
+                        String b = names.get(random.nextInt(names.size()));
+                        double kind = random.nextDouble();
+                        long start = System.nanoTime();
+                        try {
+                            if (kind < refreshFraction) {
+                                request("POST", url + "/refresh?name=" + encode(a));
+                                results.add("refresh", System.nanoTime() - start);
+                            } else if (kind < refreshFraction + distanceFraction) {
+                                request("GET", url + "/distance?a=" + encode(a) + "&b=" + encode(b));
+                                results.add("distance", System.nanoTime() - start);
+                            } else {
+                                request("GET", url + "/similar?name=" + encode(a) + "&k=" + k);
+                                results.add("similar", System.nanoTime() - start);
+                            }
+                        } catch (IOException e) {
+                            if (results.errors.getAndIncrement() == 0) System.out.println("First error: " + e);
+                        }
+                    }
+                }
+            }, "load-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) thread.join();
+        return results;
+    }
+
+    /* Makes a request and reads the whole response, throwing if it isn't a 200 */
+    private static String request(String method, String address) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(address).openConnection();
+        connection.setRequestMethod(method);
+        int status = connection.getResponseCode();
+        InputStream in = (status == 200) ? connection.getInputStream() : connection.getErrorStream();
+        StringBuilder body = new StringBuilder();
+        if (in != null) {
+            // Read it all (and close it) so the connection goes back to be kept alive
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            try {
+                char[] buffer = new char[4096];
+                int read;
+                while ((read = reader.read(buffer)) > 0) body.append(buffer, 0, read);
+            } finally {
+                reader.close();
+            }
+        }
+        if (status != 200) throw new IOException(method + " " + address + " returned " + status + ": " + body);
+        return body.toString();
+    }
+
+    /* The service lists people as {"people":["a","b",...]}. Handles don't need JSON unescaping */
+    private static List<String> fetchNames(String url) throws IOException {
+        String body = request("GET", url + "/people");
+        List<String> names = new ArrayList<String>();
+        int start = body.indexOf('[');
+        int end = body.lastIndexOf(']');
+        for (String quoted : body.substring(start + 1, end).split(",")) {
+            if (quoted.length() >= 2) names.add(quoted.substring(1, quoted.length() - 1));
+        }
+        return names;
+    }
+
+    private static List<String> syntheticNames(int people) {
+        List<String> names = new ArrayList<String>(people);
+        for (int i = 0; i < people; i++) names.add("user" + i);
+        return names;
+    }
+
+    /* Random distributions peaked on a couple of topics each, so there are real neighbours to find */
+    private static double[] syntheticTopics(int people, int topics, Random random) {
+        double[] distributions = new double[people * topics];
+        for (int i = 0; i < people; i++) {
+            double total = 0;
+            int favourite = random.nextInt(topics);
+            int second = random.nextInt(topics);
+            for (int topic = 0; topic < topics; topic++) {
+                double p = 0.01 + random.nextDouble() * 0.1;
+                if (topic == favourite) p += 2 + random.nextDouble();
+                if (topic == second) p += random.nextDouble();
+                distributions[i * topics + topic] = p;
+                total += p;
+            }
+            for (int topic = 0; topic < topics; topic++) distributions[i * topics + topic] /= total;
+        }
+        return distributions;
+    }
+
+    private static String encode(String name) throws UnsupportedEncodingException {
+        return URLEncoder.encode(name, "UTF-8");
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Expected an option but got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String key, String defaultValue) {
+        return options.containsKey(key) ? options.get(key) : defaultValue;
+    }
+}
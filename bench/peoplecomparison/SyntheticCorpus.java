@@ -0,0 +1,85 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A directory of _Tweets.txt feeds for benchmarking.
+ *
+ * Everything is written to a temporary directory, so the caches the stages build never touch the
+ * bundled tweets. Up to its natural size that's a copy of the real feeds. For bigger sizes, synthetic
+ * users are generated instead. Each one mixes words from a few of the real feeds, so the topic model
+ * still has some structure to find.
+ */
+class SyntheticCorpus {
+
+    final File directory;
+    final List<String> names;
+    // The raw text of the real feeds we built everything from
+    final List<String> sourceFeeds;
+
+    private SyntheticCorpus(File directory, List<String> names, List<String> sourceFeeds) {
+        this.directory = directory;
+        this.names = names;
+        this.sourceFeeds = sourceFeeds;
+    }
+
+    /**
+     * Uses the real feeds if there are at least numUsers of them, otherwise generates numUsers synthetic feeds of roughly wordsPerUser words
+     */
+    static SyntheticCorpus create(String tweetDirectory, int numUsers, int wordsPerUser, long seed) throws IOException {
+        List<String> realNames = new ArrayList<String>();
+        List<String> sourceFeeds = new ArrayList<String>();
+        File[] files = new File(tweetDirectory).listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.endsWith("_Tweets.txt")) continue;
+            realNames.add(fileName.substring(0, fileName.length() - 11));
+            sourceFeeds.add(new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8")));
+        }
+        File directory = Files.createTempDirectory("peoplecomparison-bench-" + numUsers + "-").toFile();
+        if (numUsers <= realNames.size()) {
+            for (String name : realNames.subList(0, numUsers)) {
+                String fileName = name + "_Tweets.txt";
+                Files.copy(new File(tweetDirectory, fileName).toPath(), new File(directory, fileName).toPath());
+            }
+            return new SyntheticCorpus(directory, realNames.subList(0, numUsers), sourceFeeds);
+        }
+
+        List<String[]> sourceWords = new ArrayList<String[]>();
+        for (String feed : sourceFeeds) sourceWords.add(feed.split("\\s+"));
+
+        Random random = new Random(seed);
+        List<String> names = new ArrayList<String>();
+        for (int user = 0; user < numUsers; user++) {
+            String name = "synthetic" + user;
+            // Each user mostly talks about what one real user talks about, with a bit of two others
+            String[][] mix = { sourceWords.get(random.nextInt(sourceWords.size())), sourceWords.get(random.nextInt(sourceWords.size())), sourceWords.get(random.nextInt(sourceWords.size())) };
+            StringBuilder feed = new StringBuilder(wordsPerUser * 7);
+            for (int word = 0; word < wordsPerUser; word++) {
+                double r = random.nextDouble();
+                String[] source = (r < 0.7) ? mix[0] : (r < 0.9) ? mix[1] : mix[2];
+                feed.append(source[random.nextInt(source.length)]).append(' ');
+            }
+            Files.write(new File(directory, name + "_Tweets.txt").toPath(), feed.toString().getBytes(Charset.forName("UTF-8")));
+            names.add(name);
+        }
+        return new SyntheticCorpus(directory, names, sourceFeeds);
+    }
+
+    /* Removes the temporary directory and everything the stages cached in it */
+    void delete() {
+        deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -1,6 +1,10 @@
 package peoplecomparison;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
 
 /**
@@ -8,77 +12,181 @@ import java.util.*;
  */
 public class Cache {
 
-    // Our list of names we already have info for
-    private ArrayList<String> cachedNames;
     // Temporary argument to specify whether we want to override cache (just set to NO for the time being)
     private boolean overrideCache = false;
     // How long do we want the cache to be valid for? (in hours)
     private int cacheDuration = 240;
     // The directory to cache
     private String directory;
-    // A customer filter to search for all "_Tweets.txt" files in a directory
-    private AgeFilter ageFilter;
+    // Index of everything we have cached, so lookups never need to scan the directory
+    private CacheManifest manifest;
+    private static final String MANIFEST_FILE = "manifest.tsv";
+    private static final String SUFFIX = "_Tweets.txt";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     public Cache(String directory){
         this.directory = directory;
-        ageFilter = new AgeFilter(cacheDuration);
-        buildCache();
+        manifest = new CacheManifest(new File(directory, MANIFEST_FILE));
+        if (!manifest.load()) buildCache();
     }
 
-    public boolean isCached(String name) {
-        if (!overrideCache && cachedNames.contains(name)) return true;
+    public synchronized boolean isCached(String name) {
+        if (!overrideCache && isFresh(manifest.get(name))) return true;
         else return false;
     }
 
-    public void addTwitterFeed(Person person) {
+    public synchronized void addTwitterFeed(Person person) {
+        addTwitterFeed(person, 0);
+    }
+
+    /*
+     * Stores a full feed, remembering the newest status in it so we can refresh incrementally later
+     */
+    public synchronized void addTwitterFeed(Person person, long newestStatusId) {
         try {
             // Check directory exists and add it if not
             File dir = new File(this.directory);
             if (!dir.exists()) dir.mkdir();
-            // Create tweets file in the directory
-            FileWriter writer = new FileWriter(this.directory + person.getName() + "_Tweets.txt");
-            writer.write(person.getTwitterFeed());
-            writer.close();
+            // Write to a temporary file and swap it in so readers never see a half written feed
+            byte[] bytes = person.getTwitterFeed().getBytes(UTF8);
+            File file = getFile(person.getName());
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), bytes);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            manifest.put(new CacheManifest.Entry(person.getName(), file.getName(), bytes.length, System.currentTimeMillis(), CacheManifest.hash(bytes), newestStatusId));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /*
+     * Appends the (already cleaned) new statuses on the person to their existing feed, on a line of their own
+     */
+    public synchronized void appendTwitterFeed(Person person, long newestStatusId) {
+        CacheManifest.Entry entry = manifest.get(person.getName());
+        if (newestStatusId <= 0 && entry != null) newestStatusId = entry.newestStatusId;
+        try {
+            File file = getFile(person.getName());
+            String feed = person.getTwitterFeed();
+            if (!feed.isEmpty()) {
+                OutputStream out = new FileOutputStream(file, true);
+                if (file.length() > 0) out.write('\n');
+                out.write(feed.getBytes(UTF8));
+                out.close();
+            }
+            // Appending nothing still counts as a refresh
+            manifest.put(new CacheManifest.Entry(person.getName(), file.getName(), file.length(), System.currentTimeMillis(), CacheManifest.hash(file), newestStatusId));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Whether we hold an (possibly expired) feed for this name that can be topped up with newer statuses
+     */
+    public synchronized boolean canRefresh(String name) {
+        return getNewestStatusId(name) > 0;
+    }
+
+    /* Returns the newest status ID we hold for this name, or 0 if we don't know it */
+    public synchronized long getNewestStatusId(String name) {
+        CacheManifest.Entry entry = manifest.get(name);
+        return (entry != null) ? entry.newestStatusId : 0;
+    }
+
     public String getTwitterFeed(Person person) {
-        String twitterFeed = null;
+        return getTwitterFeedView(person).toString();
+    }
+
+    /*
+     * Returns a read-only view of the cached feed, for handing straight to the pipe.
+     * The file is memory mapped and decoded directly into a CharBuffer, so there's no Scanner,
+     * no intermediate String and no file handle left open. UTF-8 can't be read in place as chars,
+     * so the decoded buffer is still one copy, but it's dropped as soon as the pipe tokenizes it.
+     */
+    public CharSequence getTwitterFeedView(Person person) {
+        CharBuffer twitterFeed = null;
         try {
-            twitterFeed = new Scanner(new FileReader(this.directory + person.getName() + "_Tweets.txt")).useDelimiter("\\Z").next();
-        } catch (FileNotFoundException e) {
+            FileChannel channel = FileChannel.open(getFile(person.getName()).toPath(), StandardOpenOption.READ);
+            try {
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                twitterFeed = UTF8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(bytes);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
             System.out.println("Couldn't read from cache");
             e.printStackTrace();
             System.exit(-1);
         }
-        return twitterFeed;
+        return twitterFeed.asReadOnlyBuffer();
+    }
+
+    /* Returns the hash of the cached feed's contents, or null if we don't have one */
+    public synchronized String getContentHash(String name) {
+        CacheManifest.Entry entry = manifest.get(name);
+        return (entry != null) ? entry.hash : null;
+    }
+
+    /* The names of everyone we have a feed on disk for, however old */
+    public synchronized List<String> getNames() {
+        List<String> names = new ArrayList<String>();
+        for (CacheManifest.Entry entry : manifest.getEntries()) names.add(entry.name);
+        Collections.sort(names);
+        return names;
     }
 
-    public void rebuildCache(int newDuration){
+    /* Whether there's a feed on disk for this name, however old */
+    public synchronized boolean hasTwitterFeed(String name) {
+        return manifest.get(name) != null;
+    }
+
+    public synchronized void rebuildCache(int newDuration){
+        // Freshness is worked out from the manifest, so there's nothing to rescan
         this.cacheDuration = newDuration;
-        ageFilter.setAge(newDuration);
-        buildCache();
     }
 
+    /*
+     * Throws away the manifest and rebuilds it from whatever is in the directory
+     */
     public void rebuildCache() {
         buildCache();
     }
 
-    public void setCacheDuration(int newDuration) {
+    public synchronized void setCacheDuration(int newDuration) {
         this.cacheDuration = newDuration;
     }
 
-    private void buildCache(){
-        cachedNames = new ArrayList<String>();
+    private boolean isFresh(CacheManifest.Entry entry) {
+        if (entry == null) return false;
+        long diff = System.currentTimeMillis() - entry.fetchTime;
+        return diff < cacheDuration * 60L * 60 * 1000;
+    }
+
+    private File getFile(String name) {
+        return new File(this.directory + name + SUFFIX);
+    }
+
+    /* Scans the directory once to build a new manifest (only needed the first time, or if the manifest is lost) */
+    private synchronized void buildCache(){
+        List<CacheManifest.Entry> entries = new ArrayList<CacheManifest.Entry>();
         File dir = new File(directory);
         if (dir.exists()) {
-            File[] fileArr = dir.listFiles(ageFilter);
-            for (File file : fileArr) {
-                String fileName = file.getName();
-                cachedNames.add(fileName.substring(0, fileName.length() - 11)); // Remove the "_Tweets.txt"
+            try {
+                for (File file : dir.listFiles()) {
+                    String fileName = file.getName();
+                    if (!file.isFile() || !fileName.endsWith(SUFFIX)) continue;
+                    String name = fileName.substring(0, fileName.length() - SUFFIX.length()); // Remove the "_Tweets.txt"
+                    entries.add(new CacheManifest.Entry(name, fileName, file.length(), file.lastModified(), CacheManifest.hash(file), 0));
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't build cache manifest");
+                e.printStackTrace();
             }
         }
+        manifest.putAll(entries);
     }
 }
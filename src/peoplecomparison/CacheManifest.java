@@ -0,0 +1,205 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * An index of everything in the cache: for each name, the file it's in, its size,
+ * when it was fetched, a hash of its contents and the newest status ID it holds.
+ *
+ * It's kept in memory as a hash map so lookups don't touch the filesystem, and persisted as a
+ * tab separated journal. Updates are appended as a single line ending in a checksum of the rest of it, so a
+ * torn last line never parses. A journal that doesn't end in a newline is compacted before anything else is appended
+ * to it, and so is one that has got too long, with an atomic rename.
+ */
+class CacheManifest {
+
+    static class Entry {
+        final String name;
+        final String fileName;
+        final long size;
+        final long fetchTime;
+        final String hash;
+        final long newestStatusId;
+
+        Entry(String name, String fileName, long size, long fetchTime, String hash, long newestStatusId) {
+            this.name = name;
+            this.fileName = fileName;
+            this.size = size;
+            this.fetchTime = fetchTime;
+            this.hash = hash;
+            this.newestStatusId = newestStatusId;
+        }
+
+        private String toLine() {
+            String record = name + "\t" + fileName + "\t" + size + "\t" + fetchTime + "\t" + hash + "\t" + newestStatusId;
+            return record + "\t" + checksum(record);
+        }
+
+        private static Entry fromLine(String line) {
+            int end = line.lastIndexOf('\t');
+            if (end < 0 || !line.substring(end + 1).equals(checksum(line.substring(0, end)))) return null;
+            String[] fields = line.substring(0, end).split("\t");
+            if (fields.length != 6) return null;
+            try {
+                return new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], Long.parseLong(fields[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /* Hex CRC32 of a record, always 8 digits so a truncated one can't match */
+        private static String checksum(String record) {
+            CRC32 crc = new CRC32();
+            crc.update(record.getBytes(UTF8));
+            return String.format("%08x", crc.getValue());
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // Lines in the journal on disk, so we know when it's worth compacting
+    private int journalLines = 0;
+
+    CacheManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the manifest from disk, returning false if there isn't one yet
+     */
+    boolean load() {
+        entries.clear();
+        journalLines = 0;
+        if (!file.exists()) return false;
+        try {
+            BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.fromLine(line);
+                if (entry != null) entries.put(entry.name, entry);
+                journalLines++;
+            }
+            reader.close();
+        } catch (IOException e) {
+            System.out.println("Couldn't read cache manifest, rebuilding it");
+            e.printStackTrace();
+            return false;
+        }
+        // Nothing we can read (say a journal from before the checksums), so scan the cache again
+        if (entries.isEmpty() && journalLines > 0) return false;
+        // Appending after a torn last line would run the next entry into it, so start again from just the live entries
+        if (isBloated() || !endsWithNewline()) rewrite();
+        return true;
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Records an entry, replacing any previous one for the same name
+     */
+    void put(Entry entry) {
+        entries.put(entry.name, entry);
+        try {
+            file.getParentFile().mkdirs();
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+            writer.write(entry.toLine() + "\n");
+            writer.close();
+            journalLines++;
+        } catch (IOException e) {
+            // We may have left a torn line, so compact rather than append after it next time
+            e.printStackTrace();
+            rewrite();
+            return;
+        }
+        // A long running process (like SimilarityService) may never load the manifest again
+        if (isBloated()) rewrite();
+    }
+
+    /**
+     * Replaces everything in the manifest with the given entries
+     */
+    void putAll(Collection<Entry> newEntries) {
+        entries.clear();
+        for (Entry entry : newEntries) entries.put(entry.name, entry);
+        rewrite();
+    }
+
+    /* Whether the journal has enough superseded lines in it to be worth compacting */
+    private boolean isBloated() {
+        return journalLines > 2 * entries.size() + 100;
+    }
+
+    /* Whether the journal on disk is empty or ends with a complete line */
+    private boolean endsWithNewline() {
+        try {
+            RandomAccessFile journal = new RandomAccessFile(file, "r");
+            try {
+                if (journal.length() == 0) return true;
+                journal.seek(journal.length() - 1);
+                return journal.read() == '\n';
+            } finally {
+                journal.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /* Writes out just the live entries to a temporary file and swaps it in */
+    private void rewrite() {
+        try {
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getPath() + ".tmp");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+            for (Entry entry : entries.values()) writer.write(entry.toLine() + "\n");
+            writer.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalLines = entries.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Hex MD5 of some bytes */
+    static String hash(byte[] bytes) {
+        return toHex(md5().digest(bytes));
+    }
+
+    /* Hex MD5 of a file's contents */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = md5();
+        InputStream in = new FileInputStream(file);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        in.close();
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
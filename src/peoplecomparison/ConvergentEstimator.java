@@ -0,0 +1,307 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Runs Gibbs sampling on a topic model in short bursts until it has converged, rather than for a fixed number of iterations.
+ *
+ * After every burst we record the log likelihood per token and the fraction of tokens whose topic changed (churn).
+ * Sampling stops once the log likelihood per token has improved by less than the tolerance for a few bursts in a row,
+ * or the wall clock budget is spent, or we hit the maximum number of iterations, whichever comes first.
+ *
+ * Mallet counts iterations from 1 on every call to estimate(), so it would never get past its burn-in period and
+ * optimise alpha and beta in bursts this short. We turn its optimisation off and do the same thing ourselves at the
+ * same points in the whole run (every optimizeInterval iterations once past burnInPeriod, from samples of the
+ * document topic counts every saveSampleInterval). A run isn't counted as converged until an optimisation has left
+ * them nearly where they were.
+ */
+public class ConvergentEstimator {
+
+    /* Where the model had got to after a burst of sampling */
+    public static class Step {
+        public final int iteration;
+        public final long elapsedMillis;
+        public final double logLikelihoodPerToken;
+        public final double churn;
+
+        Step(int iteration, long elapsedMillis, double logLikelihoodPerToken, double churn) {
+            this.iteration = iteration;
+            this.elapsedMillis = elapsedMillis;
+            this.logLikelihoodPerToken = logLikelihoodPerToken;
+            this.churn = churn;
+        }
+    }
+
+    // A sampler thread is only worth starting if it gets at least this many tokens
+    private static final int MIN_TOKENS_PER_THREAD = 50000;
+    // Alpha and beta have settled once optimising them changes their sums by less than this (relative)
+    private static final double HYPERPARAMETER_TOLERANCE = 0.05;
+
+    // Mallet's logger is shared by every model, and estimates can run side by side (as in a sweep), so the first one to start
+    // quietens it and only the last one to finish puts its level back
+    private static final Logger MALLET_LOGGER = Logger.getLogger(ParallelTopicModel.class.getName());
+    private static int quietEstimates = 0;
+    private static Level malletLevel;
+
+    private final int maxIterations;
+    private final long timeBudgetMillis;
+    // Iterations per burst, and never stop before this many
+    private int checkInterval = 10;
+    private int minIterations = 50;
+    // Converged once LL/token has moved by less than this (relative) for this many bursts in a row
+    private double tolerance = 0.001;
+    private int patience = 2;
+
+    // Where to checkpoint the sampler state, and how often (in iterations)
+    private SamplerCheckpoint checkpoint;
+    private int checkpointInterval;
+
+    private List<Step> trajectory = new ArrayList<Step>();
+    private String stopReason;
+
+    public ConvergentEstimator(int maxIterations, long timeBudgetMillis) {
+        this.maxIterations = maxIterations;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public void setMinIterations(int minIterations) {
+        this.minIterations = minIterations;
+    }
+
+    public void setTolerance(double tolerance, int patience) {
+        this.tolerance = tolerance;
+        this.patience = patience;
+    }
+
+    /**
+     * Checkpoints the sampler state every so many iterations (rounded up to whole bursts), and resumes from it if there's one already
+     */
+    public void setCheckpoint(SamplerCheckpoint checkpoint, int checkpointInterval) {
+        this.checkpoint = checkpoint;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * How many sampler threads are worth using: one per core, but no more than the corpus can keep busy
+     */
+    public static int chooseNumThreads(InstanceList instances) {
+        long tokens = 0;
+        for (Instance instance : instances) tokens += ((FeatureSequence) instance.getData()).getLength();
+        int byTokens = (int) Math.max(1, tokens / MIN_TOKENS_PER_THREAD);
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), Math.min(byTokens, instances.size())));
+    }
+
+    /**
+     * Samples the model (which must already have its instances added) until it converges or runs out of time or iterations
+     */
+    public void estimate(ParallelTopicModel model) throws IOException {
+        trajectory.clear();
+        long start = System.currentTimeMillis();
+        int iteration = (checkpoint != null) ? checkpoint.restore(model) : 0;
+        int startIteration = iteration;
+        int lastCheckpoint = iteration;
+        int[][] previousTopics = snapshotTopics(model);
+        double previousLogLikelihood = Double.NaN;
+        int stableBursts = 0;
+
+        // Mallet would print the topics every 50 iterations of each burst, so leave that to our caller, and its
+        // iteration count and log likelihood would start again at <10> every burst, so leave those to the trajectory
+        model.setTopicDisplay(0, 0);
+        quietenMallet();
+        int optimizeInterval = model.optimizeInterval;
+        model.optimizeInterval = 0;
+        AlphaStatistics statistics = new AlphaStatistics(model);
+        boolean settled = (optimizeInterval == 0);
+        // Mallet seeds its samplers afresh on every estimate(), so a seeded model would draw the same random numbers in
+        // every burst. Give each burst its own seed instead, drawn from the model's so the run can still be repeated
+        int seed = model.randomSeed;
+        Random burstSeeds = (seed == -1) ? null : new Random(seed);
+        try {
+            while (true) {
+                int burst = Math.min(checkInterval, maxIterations - iteration);
+                model.setNumIterations(burst);
+                if (burstSeeds != null) model.setRandomSeed(burstSeeds.nextInt(Integer.MAX_VALUE));
+                long burstStart = System.nanoTime();
+                model.estimate();
+                Metrics.record("lda_iteration", System.nanoTime() - burstStart, burst);
+                int previousIteration = iteration;
+                iteration += burst;
+
+                if (optimizeInterval != 0) {
+                    statistics.collect(model, crossings(previousIteration, iteration, model.burninPeriod, model.saveSampleInterval));
+                    double alphaSum = model.alphaSum;
+                    double betaSum = model.betaSum;
+                    if (crossings(previousIteration, iteration, model.burninPeriod, optimizeInterval) > 0 && statistics.optimize(model)) {
+                        settled = Math.abs(model.alphaSum / alphaSum - 1) < HYPERPARAMETER_TOLERANCE && Math.abs(model.betaSum / betaSum - 1) < HYPERPARAMETER_TOLERANCE;
+                    }
+                }
+
+                double logLikelihood = model.modelLogLikelihood() / model.totalTokens;
+                int[][] topics = snapshotTopics(model);
+                double churn = churn(previousTopics, topics);
+                previousTopics = topics;
+                long elapsed = System.currentTimeMillis() - start;
+                trajectory.add(new Step(iteration, elapsed, logLikelihood, churn));
+                if (checkpoint != null && iteration - lastCheckpoint >= checkpointInterval && checkpoint.save(model, iteration, topics)) lastCheckpoint = iteration;
+
+                if (!Double.isNaN(previousLogLikelihood) && Math.abs((logLikelihood - previousLogLikelihood) / previousLogLikelihood) < tolerance) stableBursts++;
+                else stableBursts = 0;
+                previousLogLikelihood = logLikelihood;
+
+                if (iteration >= maxIterations) {
+                    stopReason = "reached " + maxIterations + " iterations";
+                    break;
+                }
+                if (iteration >= minIterations && settled && stableBursts >= patience) {
+                    stopReason = "converged";
+                    break;
+                }
+                // Stop if another burst would take us over the budget
+                if (elapsed + elapsed / (iteration - startIteration) * checkInterval > timeBudgetMillis) {
+                    stopReason = "out of time";
+                    break;
+                }
+            }
+        } finally {
+            model.setRandomSeed(seed);
+            model.optimizeInterval = optimizeInterval;
+            restoreMallet();
+        }
+    }
+
+    private static synchronized void quietenMallet() {
+        if (quietEstimates++ == 0) {
+            malletLevel = MALLET_LOGGER.getLevel();
+            MALLET_LOGGER.setLevel(Level.WARNING);
+        }
+    }
+
+    private static synchronized void restoreMallet() {
+        if (--quietEstimates == 0) MALLET_LOGGER.setLevel(malletLevel);
+    }
+
+    public List<Step> getTrajectory() {
+        return trajectory;
+    }
+
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    public int getIterations() {
+        return trajectory.isEmpty() ? 0 : trajectory.get(trajectory.size() - 1).iteration;
+    }
+
+    public void printTrajectory() {
+        System.out.println("Iteration\tSeconds\tLL/token\tChurn");
+        for (Step step : trajectory) {
+            System.out.printf(Locale.US, "%d\t\t%.1f\t%.5f\t%.4f%n", step.iteration, step.elapsedMillis / 1000.0, step.logLikelihoodPerToken, step.churn);
+        }
+        System.out.println("Stopped after " + getIterations() + " iterations: " + stopReason);
+    }
+
+    /* How many multiples of interval past the burn-in period there are after from, up to and including to */
+    private static int crossings(int from, int to, int burnInPeriod, int interval) {
+        int after = Math.max(from, burnInPeriod);
+        return (interval <= 0 || to <= after) ? 0 : to / interval - after / interval;
+    }
+
+    private static int[][] snapshotTopics(ParallelTopicModel model) {
+        int[][] topics = new int[model.getData().size()][];
+        for (int doc = 0; doc < topics.length; doc++) {
+            LabelSequence sequence = model.getData().get(doc).topicSequence;
+            topics[doc] = Arrays.copyOf(sequence.getFeatures(), sequence.getLength());
+        }
+        return topics;
+    }
+
+    /*
+     * The histograms Mallet's sampler threads collect to optimise alpha (how many documents have each length, and how
+     * many have each number of tokens in each topic), taken from the model's topic assignments between bursts instead
+     */
+    private static class AlphaStatistics {
+        private final int[] docLengthCounts;
+        private final int[][] topicDocCounts;
+        private int samples = 0;
+
+        AlphaStatistics(ParallelTopicModel model) {
+            int maxLength = 0;
+            for (TopicAssignment doc : model.getData()) maxLength = Math.max(maxLength, doc.topicSequence.getLength());
+            docLengthCounts = new int[maxLength + 1];
+            topicDocCounts = new int[model.getNumTopics()][maxLength + 1];
+        }
+
+        /* Adds the documents' current topic counts, once for every sample point the last burst went past */
+        void collect(ParallelTopicModel model, int times) {
+            if (times == 0) return;
+            int[] counts = new int[model.getNumTopics()];
+            for (TopicAssignment doc : model.getData()) {
+                int[] topics = doc.topicSequence.getFeatures();
+                int length = doc.topicSequence.getLength();
+                Arrays.fill(counts, 0);
+                for (int position = 0; position < length; position++) counts[topics[position]]++;
+                docLengthCounts[length] += times;
+                for (int topic = 0; topic < counts.length; topic++) {
+                    // A symmetric alpha is learnt from every topic's counts together
+                    if (counts[topic] > 0) topicDocCounts[model.usingSymmetricAlpha ? 0 : topic][counts[topic]] += times;
+                }
+            }
+            samples += times;
+        }
+
+        /* Optimises alpha and beta the same way as ParallelTopicModel.optimizeAlpha and optimizeBeta. False if there's nothing to go on yet */
+        boolean optimize(ParallelTopicModel model) {
+            if (samples == 0) return false;
+            int numTopics = model.getNumTopics();
+            if (model.usingSymmetricAlpha) {
+                model.alphaSum = Dirichlet.learnSymmetricConcentration(topicDocCounts[0], docLengthCounts, numTopics, model.alphaSum);
+                Arrays.fill(model.alpha, model.alphaSum / numTopics);
+            } else {
+                model.alphaSum = Dirichlet.learnParameters(model.alpha, topicDocCounts, docLengthCounts, 1.001, 1.0, 1);
+            }
+            Arrays.fill(docLengthCounts, 0);
+            for (int[] counts : topicDocCounts) Arrays.fill(counts, 0);
+            samples = 0;
+
+            // Beta from how many times each word is in each topic, and how big the topics are. No word can be in a topic
+            // more times than the topic has tokens
+            int maxTopicSize = 0;
+            for (int topic = 0; topic < numTopics; topic++) maxTopicSize = Math.max(maxTopicSize, model.tokensPerTopic[topic]);
+            int[] countHistogram = new int[maxTopicSize + 1];
+            int[] topicSizeHistogram = new int[maxTopicSize + 1];
+            for (int type = 0; type < model.numTypes; type++) {
+                // Each word's counts are packed (count << topicBits | topic), biggest first and ending at the first zero
+                for (int packed : model.typeTopicCounts[type]) {
+                    if (packed <= 0) break;
+                    countHistogram[packed >> model.topicBits]++;
+                }
+            }
+            for (int topic = 0; topic < numTopics; topic++) topicSizeHistogram[model.tokensPerTopic[topic]]++;
+            model.betaSum = Dirichlet.learnSymmetricConcentration(countHistogram, topicSizeHistogram, model.numTypes, model.betaSum);
+            model.beta = model.betaSum / model.numTypes;
+            return true;
+        }
+    }
+
+    /* The fraction of tokens whose topic is different between two snapshots */
+    private static double churn(int[][] before, int[][] after) {
+        long changed = 0;
+        long total = 0;
+        for (int doc = 0; doc < after.length; doc++) {
+            for (int position = 0; position < after[doc].length; position++) {
+                if (before[doc][position] != after[doc][position]) changed++;
+            }
+            total += after[doc].length;
+        }
+        return (total == 0) ? 0 : (double) changed / total;
+    }
+}
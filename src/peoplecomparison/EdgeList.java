@@ -0,0 +1,78 @@
+package peoplecomparison;
+
+import java.util.*;
+
+/**
+ * Weighted undirected edges between numbered nodes, kept in parallel arrays so millions of them stay compact.
+ *
+ * Used to hand a whole graph to GraphBuilder (or ForceAtlas2Layout) in one go, rather than an edge at a time.
+ */
+public class EdgeList {
+
+    private int[] sources;
+    private int[] targets;
+    private double[] weights;
+    private int size = 0;
+
+    public EdgeList() {
+        this(16);
+    }
+
+    public EdgeList(int capacity) {
+        capacity = Math.max(1, capacity);
+        sources = new int[capacity];
+        targets = new int[capacity];
+        weights = new double[capacity];
+    }
+
+    /**
+     * The edges of a nearest neighbour graph, weighted by the inverse of their distance as everywhere else
+     */
+    public static EdgeList fromNeighbours(List<TopicNeighbourIndex.Neighbour> neighbours) {
+        EdgeList edges = new EdgeList(neighbours.size());
+        for (TopicNeighbourIndex.Neighbour neighbour : neighbours) edges.add(neighbour.source, neighbour.target, GraphSparsifier.weight(neighbour.distance));
+        return edges;
+    }
+
+    public void add(int source, int target, double weight) {
+        if (size == sources.length) {
+            int capacity = sources.length * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+        sources[size] = source;
+        targets[size] = target;
+        weights[size] = weight;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getSource(int edge) {
+        return sources[edge];
+    }
+
+    public int getTarget(int edge) {
+        return targets[edge];
+    }
+
+    public double getWeight(int edge) {
+        return weights[edge];
+    }
+
+    /* Copies of the arrays, exactly as long as the number of edges */
+    public int[] getSources() {
+        return Arrays.copyOf(sources, size);
+    }
+
+    public int[] getTargets() {
+        return Arrays.copyOf(targets, size);
+    }
+
+    public double[] getWeights() {
+        return Arrays.copyOf(weights, size);
+    }
+}
@@ -0,0 +1,169 @@
+package peoplecomparison;
+
+import cc.mallet.pipe.*;
+import cc.mallet.types.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * A second cache tier holding each user's feed after it has been through the pipe.
+ *
+ * Every user's FeatureSequence is stored in its own small binary file, tagged with the content hash
+ * of the raw feed it was built from, and the shared alphabet is stored alongside them. When we start up
+ * the stored alphabet is loaded into the pipe's alphabet first (so the indices line up), and then any
+ * user whose raw feed hasn't changed can go straight into the InstanceList without being piped again.
+ *
+ * Feeds are cached one status per line, and the features keep track of where each status's words end so statuses can
+ * still be dropped (as near duplicates, say) without piping the feed again. The instances handed in and out carry the
+ * number of words in each status, as an int[], as their source.
+ */
+public class FeatureCache {
+
+    // Bump this if the file format changes
+    private static final int FORMAT_VERSION = 2;
+    private static final String ALPHABET_FILE = "alphabet.bin";
+    private static final String SUFFIX = "_Features.bin";
+
+    private String directory;
+    private Alphabet alphabet;
+    // Stored alphabet entries whose indices we can trust (anything above this was never saved)
+    private int savedAlphabetSize = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+    public FeatureCache(String directory, Pipe pipe) {
+        this.directory = directory;
+        this.alphabet = pipe.getDataAlphabet();
+        loadAlphabet();
+    }
+
+    /**
+     * Returns the already piped instance for this name, or null if we don't have one for this version of their feed
+     */
+    public Instance getInstance(String name, String contentHash) {
+        File file = getFile(name);
+        if (contentHash == null || !file.exists()) {
+            miss();
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(MalletUtil.PIPE_SIGNATURE) || !in.readUTF().equals(contentHash)) {
+                    miss();
+                    return null;
+                }
+                int[] features = new int[in.readInt()];
+                for (int i = 0; i < features.length; i++) {
+                    features[i] = in.readInt();
+                    if (features[i] < 0 || features[i] >= savedAlphabetSize) {
+                        miss();
+                        return null;
+                    }
+                }
+                int[] statusLengths = new int[in.readInt()];
+                for (int i = 0; i < statusLengths.length; i++) statusLengths[i] = in.readInt();
+                hit();
+                return new Instance(new FeatureSequence(alphabet, features), null, name, statusLengths);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't read cached features for " + name + ", will pipe them again");
+            miss();
+            return null;
+        }
+    }
+
+    /**
+     * Stores an instance that has just been through the pipe
+     */
+    public void put(Instance instance, String contentHash) {
+        if (contentHash == null) return;
+        FeatureSequence sequence = (FeatureSequence) instance.getData();
+        int[] statusLengths = (int[]) instance.getSource();
+        String name = (String) instance.getName();
+        try {
+            File dir = new File(directory);
+            if (!dir.exists()) dir.mkdirs();
+            File file = getFile(name);
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(MalletUtil.PIPE_SIGNATURE);
+            out.writeUTF(contentHash);
+            out.writeInt(sequence.getLength());
+            for (int i = 0; i < sequence.getLength(); i++) out.writeInt(sequence.getIndexAtPosition(i));
+            out.writeInt(statusLengths.length);
+            for (int length : statusLengths) out.writeInt(length);
+            out.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes out the alphabet, which has to happen after any new instances have been added
+     */
+    public void save() {
+        try {
+            File dir = new File(directory);
+            if (!dir.exists()) dir.mkdirs();
+            File file = new File(directory, ALPHABET_FILE);
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(MalletUtil.PIPE_SIGNATURE);
+            int size = alphabet.size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) out.writeUTF((String) alphabet.lookupObject(i));
+            out.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedAlphabetSize = size;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(hits + " feature sequences loaded from cache, " + misses + " piped");
+    }
+
+    /* Loads the stored alphabet into the pipe's (empty) alphabet so stored indices mean the same thing */
+    private void loadAlphabet() {
+        File file = new File(directory, ALPHABET_FILE);
+        if (!file.exists()) return;
+        if (alphabet.size() > 0) {
+            System.out.println("Pipe alphabet already in use, ignoring cached features");
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(MalletUtil.PIPE_SIGNATURE)) return;
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) alphabet.lookupIndex(in.readUTF(), true);
+                savedAlphabetSize = size;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't read cached alphabet, all feeds will be piped again");
+            e.printStackTrace();
+        }
+    }
+
+    // Feeds can be looked up from several pipeline threads at once
+    private synchronized void hit() {
+        hits++;
+        Metrics.count("feature_cache_hits");
+    }
+
+    private synchronized void miss() {
+        misses++;
+        Metrics.count("feature_cache_misses");
+    }
+
+    private File getFile(String name) {
+        return new File(directory, name + SUFFIX);
+    }
+}
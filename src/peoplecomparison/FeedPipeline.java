@@ -0,0 +1,361 @@
+package peoplecomparison;
+
+import cc.mallet.extract.StringSpan;
+import cc.mallet.pipe.*;
+import cc.mallet.types.*;
+import twitter4j.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Takes Twitter handles from a file all the way to Mallet instances, with every stage working at once.
+ *
+ * Each handle passes through fetch, clean, cache, tokenize and build stages. Every stage has its own pool of threads
+ * and hands its work on through a small bounded queue, so a slow stage holds up the ones before it (rather than
+ * letting work pile up in memory) while the stages after it carry on with what they already have. A feed's text only
+ * lives between being fetched and being tokenized, so memory stays flat however many handles there are, and the
+ * whole run takes about as long as the slowest stage would on its own.
+ *
+ * Feeds that are already cached skip straight past fetching, and feeds whose features are cached skip tokenizing.
+ *
+ * Near duplicate statuses are dropped from the instances, never from the caches. Each status's signature is worked out
+ * as its feed is built, but the filter only runs once every feed is in, in order of handle, so it's always the same copy
+ * of a shared status that's kept.
+ */
+public class FeedPipeline {
+
+    public enum Stage {FETCH, CLEAN, CACHE, TOKENIZE, BUILD}
+
+    /* One handle on its way through the pipeline. Each stage fills in what it's responsible for and drops what it's finished with */
+    private static class Item {
+        final Person person;
+        boolean refresh;
+        List<Status> statuses;
+        long newestStatusId;
+        String hash;
+        TokenSequence tokens;
+        int[] statusLengths;
+        Instance instance;
+        int[][] signatures;
+
+        Item(Person person) {
+            this.person = person;
+        }
+    }
+
+    // Sent down a queue once everything before it is done
+    private static final Item END = new Item(null);
+
+    private final Cache cache;
+    // Set up the first time someone isn't cached, so a run that's all cache hits never needs Twitter
+    private TimelineFetcher fetcher;
+    private final FeatureCache featureCache;
+    private final Alphabet alphabet;
+    // Mallet's tokenizer keeps its matcher between calls, so each thread needs its own
+    private final ThreadLocal<Pipe> tokenPipe = new ThreadLocal<Pipe>() {
+        protected Pipe initialValue() {
+            return MalletUtil.getTokenPipe();
+        }
+    };
+    // Drops statuses we've already seen (from anyone) from the instances, if set
+    private NearDuplicateFilter duplicateFilter;
+    // If set, every status we fetch is streamed into this as well
+    private OnlineTopicModel onlineModel;
+    private final int[] threads = {4, 1, 1, 1, 1};
+    private int queueCapacity = 16;
+
+    // How long each stage spent working, and on how many handles
+    private final AtomicLong[] busyNanos = new AtomicLong[Stage.values().length];
+    private final AtomicInteger[] processed = new AtomicInteger[Stage.values().length];
+
+    /**
+     * @param fetcher to fetch uncached feeds with, or null to set one up from twitter.properties when it's first needed
+     * @param pipe    the pipe the instances are for (only its alphabet is used, the words are looked up in it directly)
+     */
+    public FeedPipeline(Cache cache, TimelineFetcher fetcher, FeatureCache featureCache, Pipe pipe) {
+        this.cache = cache;
+        this.fetcher = fetcher;
+        this.featureCache = featureCache;
+        this.alphabet = pipe.getDataAlphabet();
+        for (int stage = 0; stage < busyNanos.length; stage++) {
+            busyNanos[stage] = new AtomicLong();
+            processed[stage] = new AtomicInteger();
+        }
+    }
+
+    public void setThreads(Stage stage, int numThreads) {
+        threads[stage.ordinal()] = Math.max(1, numThreads);
+    }
+
+    public void setDuplicateFilter(NearDuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    public synchronized void setOnlineModel(OnlineTopicModel onlineModel) {
+        this.onlineModel = onlineModel;
+        if (fetcher != null) fetcher.setOnlineModel(onlineModel);
+    }
+
+    /* How many handles can wait between two stages */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Reads handles (one per line, # for comments) and adds an instance for everyone we have a feed for to the list,
+     * counting their words into the pruner. The instances are added in order of handle, however the stages happened to
+     * finish, so the same handles always give the same list. Returns the people, in the same order as their instances.
+     */
+    public List<Person> run(final BufferedReader handles, InstanceList instances, VocabularyPruner pruner) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        List<BlockingQueue<Item>> queues = new ArrayList<BlockingQueue<Item>>();
+        for (int i = 0; i <= Stage.values().length; i++) queues.add(new ArrayBlockingQueue<Item>(queueCapacity));
+
+        // The handles are read on their own thread so fetching can start with the first one
+        final BlockingQueue<Item> first = queues.get(0);
+        final IOException[] readError = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    String line;
+                    while ((line = handles.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) continue;
+                        first.put(new Item(new Person(line)));
+                    }
+                } catch (IOException e) {
+                    readError[0] = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    putQuietly(first, END);
+                }
+            }
+        }, "pipeline-handles");
+        reader.start();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (Stage stage : Stage.values()) {
+            workers.addAll(startStage(stage, queues.get(stage.ordinal()), queues.get(stage.ordinal() + 1)));
+        }
+
+        // The finished instances come out in whatever order their stages finished
+        List<Item> finished = new ArrayList<Item>();
+        BlockingQueue<Item> last = queues.get(queues.size() - 1);
+        for (Item item = last.take(); item != END; item = last.take()) finished.add(item);
+        reader.join();
+        for (Thread worker : workers) worker.join();
+        if (readError[0] != null) throw readError[0];
+
+        Collections.sort(finished, new Comparator<Item>() {
+            public int compare(Item a, Item b) {
+                return a.person.getName().compareTo(b.person.getName());
+            }
+        });
+        // Duplicates are checked for in this order too, so the first person (by handle) to share a status keeps it
+        List<Person> people = new ArrayList<Person>();
+        for (Item item : finished) {
+            Instance instance = withoutDuplicates(item);
+            instances.add(instance);
+            if (pruner != null) pruner.count(instance);
+            people.add(item.person);
+        }
+
+        printReport(people.size(), System.currentTimeMillis() - start);
+        return people;
+    }
+
+    /**
+     * Shows how busy each stage was. The slowest stage's time (divided by its threads) is the least the run could have taken
+     */
+    public void printReport(int numPeople, long elapsedMillis) {
+        System.out.printf(Locale.US, "Pipeline finished %d feeds in %.1fs%n", numPeople, elapsedMillis / 1000.0);
+        System.out.println("Stage\t\tThreads\tHandles\tBusy (s)\tPer thread (s)");
+        for (Stage stage : Stage.values()) {
+            double busy = busyNanos[stage.ordinal()].get() / 1e9;
+            System.out.printf(Locale.US, "%-8s\t%d\t\t%d\t\t%.2f\t\t%.2f%n", stage, threads[stage.ordinal()], processed[stage.ordinal()].get(), busy, busy / threads[stage.ordinal()]);
+        }
+    }
+
+    /* Starts a stage's threads, the last of which to finish passes END on */
+    private List<Thread> startStage(final Stage stage, final BlockingQueue<Item> in, final BlockingQueue<Item> out) {
+        final AtomicInteger running = new AtomicInteger(threads[stage.ordinal()]);
+        List<Thread> started = new ArrayList<Thread>();
+        for (int i = 0; i < threads[stage.ordinal()]; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (Item item = in.take(); item != END; item = in.take()) {
+                            long start = System.nanoTime();
+                            Item result = null;
+                            try {
+                                result = process(stage, item);
+                            } catch (Exception e) {
+                                System.out.println("Skipping " + item.person.getName() + ", " + stage.name().toLowerCase() + " failed");
+                                e.printStackTrace();
+                            }
+                            long nanos = System.nanoTime() - start;
+                            busyNanos[stage.ordinal()].addAndGet(nanos);
+                            processed[stage.ordinal()].incrementAndGet();
+                            Metrics.record(stage.name().toLowerCase(), nanos, 1);
+                            if (result != null) out.put(result);
+                        }
+                        // Leave END for the rest of this stage's threads
+                        in.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        if (running.decrementAndGet() == 0) putQuietly(out, END);
+                    }
+                }
+            }, "pipeline-" + stage.name().toLowerCase() + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            started.add(thread);
+        }
+        return started;
+    }
+
+    /* Does one stage's work on an item, returning null if it shouldn't go any further */
+    private Item process(Stage stage, Item item) throws TwitterException, InterruptedException, IOException {
+        Person person = item.person;
+        String name = person.getName();
+        switch (stage) {
+            case FETCH:
+                if (cache.isCached(name)) {
+                    Metrics.count("feed_cache_hits");
+                    return item;
+                }
+                Metrics.count("feed_cache_misses");
+                item.refresh = cache.canRefresh(name);
+                try {
+                    item.statuses = getFetcher().fetch(name, item.refresh ? cache.getNewestStatusId(name) : 0);
+                } catch (TwitterException e) {
+                    System.out.println("Skipping " + name + ", failed to get timeline from Twitter");
+                    return null;
+                }
+                item.newestStatusId = TimelineFetcher.newestStatusId(item.statuses);
+                return item;
+
+            case CLEAN:
+                if (item.statuses != null) {
+                    person.setTwitterFeed(item.statuses);
+                    item.statuses = null;
+                }
+                return item;
+
+            case CACHE:
+                if (person.getTwitterFeed() != null) {
+                    if (item.refresh) cache.appendTwitterFeed(person, item.newestStatusId);
+                    else cache.addTwitterFeed(person, item.newestStatusId);
+                    // The feed is read back from the cache when it's needed, so don't hang on to it
+                    person.setTwitterFeed((String) null);
+                }
+                if (!cache.hasTwitterFeed(name)) return null;
+                item.hash = cache.getContentHash(name);
+                return item;
+
+            case TOKENIZE:
+                // Anyone whose feed hasn't changed since the last run skips the pipe
+                item.instance = featureCache.getInstance(name, item.hash);
+                if (item.instance == null) {
+                    CharSequence feed = cache.getTwitterFeedView(person);
+                    item.tokens = (TokenSequence) tokenPipe.get().instanceFrom(new Instance(feed, null, name, null)).getData();
+                    item.statusLengths = statusLengths(feed, item.tokens);
+                }
+                return item;
+
+            case BUILD:
+                if (item.instance == null) {
+                    // The same as the pipe's TokenSequence2FeatureSequence, but the alphabet can only grow one thread at a time
+                    FeatureSequence features = new FeatureSequence(alphabet, item.tokens.size());
+                    synchronized (alphabet) {
+                        for (int i = 0; i < item.tokens.size(); i++) features.add(item.tokens.get(i).getText());
+                    }
+                    item.tokens = null;
+                    item.instance = new Instance(features, null, name, item.statusLengths);
+                    item.statusLengths = null;
+                    featureCache.put(item.instance, item.hash);
+                }
+                if (duplicateFilter != null) item.signatures = signatures((FeatureSequence) item.instance.getData(), (int[]) item.instance.getSource());
+                return item;
+
+            default:
+                throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+
+    /* How many of the tokens are on each line of the feed, i.e. in each status */
+    private static int[] statusLengths(CharSequence feed, TokenSequence tokens) {
+        int lines = 1;
+        for (int i = 0; i < feed.length(); i++) {
+            if (feed.charAt(i) == '\n') lines++;
+        }
+        int[] lengths = new int[lines];
+        int line = 0;
+        int position = 0;
+        for (int t = 0; t < tokens.size(); t++) {
+            // The tokenizer's tokens remember where they started in the feed (and can't span a line break)
+            int start = ((StringSpan) tokens.get(t)).getStartIdx();
+            for (; position < start; position++) {
+                if (feed.charAt(position) == '\n') line++;
+            }
+            lengths[line]++;
+        }
+        return lengths;
+    }
+
+    /* The signature of each of the feed's statuses, for the duplicate filter */
+    private int[][] signatures(FeatureSequence features, int[] statusLengths) {
+        int[][] signatures = new int[statusLengths.length][];
+        int start = 0;
+        for (int status = 0; status < statusLengths.length; status++) {
+            String[] words = new String[statusLengths[status]];
+            synchronized (alphabet) {
+                for (int i = 0; i < words.length; i++) words[i] = (String) alphabet.lookupObject(features.getIndexAtPosition(start + i));
+            }
+            signatures[status] = duplicateFilter.signature(words);
+            start += words.length;
+        }
+        return signatures;
+    }
+
+    /* The item's instance as it goes in the list, without any statuses the duplicate filter has already seen (if there is one) */
+    private Instance withoutDuplicates(Item item) {
+        FeatureSequence features = (FeatureSequence) item.instance.getData();
+        String name = item.person.getName();
+        if (duplicateFilter == null) return new Instance(features, null, name, null);
+        int[] statusLengths = (int[]) item.instance.getSource();
+        int[] kept = new int[features.getLength()];
+        int length = 0;
+        int start = 0;
+        for (int status = 0; status < statusLengths.length; status++) {
+            if (statusLengths[status] > 0 && !duplicateFilter.isDuplicate(item.signatures[status], statusLengths[status])) {
+                System.arraycopy(features.getFeatures(), start, kept, length, statusLengths[status]);
+                length += statusLengths[status];
+            }
+            start += statusLengths[status];
+        }
+        item.signatures = null;
+        return new Instance(new FeatureSequence(alphabet, Arrays.copyOf(kept, length)), null, name, null);
+    }
+
+    private synchronized TimelineFetcher getFetcher() {
+        if (fetcher == null) {
+            fetcher = new TimelineFetcher(TwitterUtil.getTimelineSource(), TwitterUtil.getMaxPages(), TwitterUtil.getRateLimitBudget());
+            fetcher.setOnlineModel(onlineModel);
+        }
+        return fetcher;
+    }
+
+    private static void putQuietly(BlockingQueue<Item> queue, Item item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
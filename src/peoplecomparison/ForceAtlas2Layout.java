@@ -0,0 +1,596 @@
+package peoplecomparison;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Lays out a weighted undirected graph with ForceAtlas2, on as many threads as we have cores, until it settles.
+ *
+ * Every node repels every other in proportion to their masses (their degree plus one), edges pull their ends together
+ * in proportion to the edge weight and distance, and a weak gravity keeps disconnected parts from drifting off. The
+ * repulsion would be quadratic, so it's worked out against a Barnes-Hut quadtree instead: a cell that's far enough
+ * away (its width over its distance below theta) acts as one body at its centre of mass. Each node's step size adapts
+ * to how much its force swings from one iteration to the next, as in the ForceAtlas2 paper (Jacomy et al. 2014), so
+ * nodes that have found their place stop jittering.
+ *
+ * Rather than running for a fixed time, the layout stops once the average node moves less than tolerance (as a
+ * fraction of the layout's width) for a few iterations running, or when it runs out of time or iterations.
+ */
+public class ForceAtlas2Layout {
+
+    // Cell contents, for cells with no children
+    private static final int EMPTY = -1;
+    private static final int AGGREGATE = -2;
+    private static final int INTERNAL = -3;
+    // Cells get no smaller than this fraction of the whole layout. Anything closer is lumped together
+    private static final double MIN_CELL_FRACTION = 1e-9;
+    private static final double MAX_RELATIVE_WEIGHT = 10;
+    // Nodes are drawn at this times the log of their weight
+    private static final float SIZE_CORRECTION_FACTOR = 0.5f;
+
+    private final int numNodes;
+    private final double[] x;
+    private final double[] y;
+    private final double[] mass;
+    private double[] sizes;
+    // Each node's edges, as offsets into neighbours and neighbourWeights
+    private final int[] edgeStart;
+    private final int[] neighbours;
+    private final double[] neighbourWeights;
+
+    private double scaling;
+    private double gravity = 1.0;
+    private double theta = 1.2;
+    private double jitterTolerance = 1.0;
+    private boolean adjustSizes = false;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int maxIterations = 10000;
+    private long timeBudgetMillis = 60 * 1000;
+    private int minIterations = 50;
+    private double tolerance = 1e-3;
+    private int patience = 5;
+
+    // This iteration's and the last iteration's forces
+    private double[] forceX;
+    private double[] forceY;
+    private double[] oldForceX;
+    private double[] oldForceY;
+    private double speed = 1.0;
+    private double speedEfficiency = 1.0;
+
+    // The quadtree, rebuilt every iteration. Each cell's children are stored together, starting at firstChild
+    private int numCells;
+    private double[] cellMass = new double[0];
+    private double[] cellSumX = new double[0];
+    private double[] cellSumY = new double[0];
+    private double[] cellMinX = new double[0];
+    private double[] cellMinY = new double[0];
+    private double[] cellWidth = new double[0];
+    private int[] cellBody = new int[0];
+    private int[] firstChild = new int[0];
+    private double minCellWidth;
+
+    private int iterations = 0;
+    private double energy = Double.NaN;
+    private double displacement = Double.NaN;
+    private long elapsedMillis = 0;
+    private String stopReason = "not run";
+
+    /**
+     * @param sources each edge's first node (0 to numNodes - 1)
+     * @param targets each edge's second node
+     * @param weights each edge's weight, or null for all 1
+     */
+    public ForceAtlas2Layout(int numNodes, int[] sources, int[] targets, double[] weights) {
+        this.numNodes = numNodes;
+        x = new double[numNodes];
+        y = new double[numNodes];
+        mass = new double[numNodes];
+        Arrays.fill(mass, 1);
+
+        // Index each edge from both ends, so a node's attraction can be summed without sharing anything between threads
+        edgeStart = new int[numNodes + 1];
+        for (int e = 0; e < sources.length; e++) {
+            if (sources[e] == targets[e]) continue;
+            edgeStart[sources[e] + 1]++;
+            edgeStart[targets[e] + 1]++;
+        }
+        for (int node = 0; node < numNodes; node++) {
+            mass[node] += edgeStart[node + 1];
+            edgeStart[node + 1] += edgeStart[node];
+        }
+        neighbours = new int[edgeStart[numNodes]];
+        neighbourWeights = new double[edgeStart[numNodes]];
+        // Weights that come from inverse distances can be huge for near identical people, which would fling them about, so
+        // scale them so the median edge has a weight of 1 and cap them at MAX_RELATIVE_WEIGHT. Anything that strong just
+        // keeps its ends together anyway
+        double scale = 1;
+        if (weights != null && weights.length > 0) {
+            double[] sorted = weights.clone();
+            Arrays.sort(sorted);
+            if (sorted[sorted.length / 2] > 0) scale = 1 / sorted[sorted.length / 2];
+        }
+        int[] next = Arrays.copyOf(edgeStart, numNodes);
+        for (int e = 0; e < sources.length; e++) {
+            if (sources[e] == targets[e]) continue;
+            double weight = (weights == null) ? 1 : Math.min(weights[e] * scale, MAX_RELATIVE_WEIGHT);
+            neighbours[next[sources[e]]] = targets[e];
+            neighbourWeights[next[sources[e]]++] = weight;
+            neighbours[next[targets[e]]] = sources[e];
+            neighbourWeights[next[targets[e]]++] = weight;
+        }
+        // The defaults Gephi uses: small graphs need less repulsion to spread out
+        scaling = (numNodes >= 100) ? 10.0 : 2.0;
+    }
+
+    /**
+     * Starts from these positions rather than scattering the nodes at random
+     */
+    public void setPositions(float[] startX, float[] startY) {
+        for (int node = 0; node < numNodes; node++) {
+            x[node] = startX[node];
+            y[node] = startY[node];
+        }
+    }
+
+    /* The size a node of this weight is drawn at (and so should be kept apart at): it grows with the log, and is never below 1 */
+    public static float nodeSize(float weight) {
+        float size = SIZE_CORRECTION_FACTOR * (float) Math.log10(1 + weight);
+        if (size < 1f) {
+            size += 1f;
+        }
+        return size;
+    }
+
+    /* Node sizes (radii), which the layout keeps apart from each other if adjustSizes is on */
+    public void setSizes(float[] nodeSizes) {
+        sizes = new double[numNodes];
+        for (int node = 0; node < numNodes; node++) sizes[node] = nodeSizes[node];
+    }
+
+    public void setAdjustSizes(boolean adjustSizes) {
+        this.adjustSizes = adjustSizes;
+    }
+
+    /* How strongly nodes repel each other, against how strongly edges pull them together */
+    public void setScaling(double scaling) {
+        this.scaling = scaling;
+    }
+
+    public void setGravity(double gravity) {
+        this.gravity = gravity;
+    }
+
+    /* Higher is faster but rougher. 1.2 is what Gephi uses */
+    public void setBarnesHutTheta(double theta) {
+        this.theta = theta;
+    }
+
+    /* How much nodes may swing about before they're slowed down. Above 1 converges faster but less precisely */
+    public void setJitterTolerance(double jitterTolerance) {
+        this.jitterTolerance = jitterTolerance;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    public void setTimeBudget(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public void setMinIterations(int minIterations) {
+        this.minIterations = minIterations;
+    }
+
+    /**
+     * Stop once the average node moves less than this fraction of the layout's width, for patience iterations in a row
+     */
+    public void setTolerance(double tolerance, int patience) {
+        this.tolerance = tolerance;
+        this.patience = patience;
+    }
+
+    /**
+     * Runs the layout until it settles, or runs out of time or iterations
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        iterations = 0;
+        speed = 1.0;
+        speedEfficiency = 1.0;
+        if (numNodes == 0) {
+            stopReason = "no nodes";
+            return;
+        }
+        scatterIfUnplaced(42);
+        forceX = new double[numNodes];
+        forceY = new double[numNodes];
+        oldForceX = new double[numNodes];
+        oldForceY = new double[numNodes];
+
+        int chunks = (numThreads == 1) ? 1 : Math.min(numNodes, numThreads * 4);
+        ExecutorService executor = (numThreads == 1) ? null : Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int count = 0;
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "layout-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            int stableIterations = 0;
+            while (true) {
+                long iterationStart = System.nanoTime();
+                step(executor, chunks);
+                iterations++;
+                Metrics.record("layout_iteration", System.nanoTime() - iterationStart, 1);
+                elapsedMillis = System.currentTimeMillis() - start;
+
+                if (displacement / cellWidth[0] < tolerance) stableIterations++;
+                else stableIterations = 0;
+
+                if (iterations >= maxIterations) {
+                    stopReason = "reached " + maxIterations + " iterations";
+                    break;
+                }
+                if (iterations >= minIterations && stableIterations >= patience) {
+                    stopReason = "converged";
+                    break;
+                }
+                // Stop if another iteration would take us over the budget
+                if (elapsedMillis + elapsedMillis / iterations > timeBudgetMillis) {
+                    stopReason = "out of time";
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopReason = "interrupted";
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+        Metrics.gauge("layout_iterations", iterations);
+        Metrics.gauge("layout_energy", energy);
+    }
+
+    public double getX(int node) {
+        return x[node];
+    }
+
+    public double getY(int node) {
+        return y[node];
+    }
+
+    /* The node's size as given to setSizes, or NaN if there weren't any */
+    public double getSize(int node) {
+        return (sizes == null) ? Double.NaN : sizes[node];
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /* The mean squared force on a node after the last iteration, which heads towards zero as the layout settles */
+    public double getEnergy() {
+        return energy;
+    }
+
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    public void printReport() {
+        System.out.printf(Locale.US, "Laid out %d nodes and %d edges in %.1fs: %d iterations (%s), energy %.4g%n",
+                numNodes, neighbours.length / 2, elapsedMillis / 1000.0, iterations, stopReason, energy);
+    }
+
+    /* One iteration: work out every node's force, pick a speed from how much the forces swung, then move the nodes */
+    private void step(ExecutorService executor, int chunks) throws InterruptedException, ExecutionException {
+        double[] swap = oldForceX;
+        oldForceX = forceX;
+        forceX = swap;
+        swap = oldForceY;
+        oldForceY = forceY;
+        forceY = swap;
+
+        buildTree();
+
+        // Sum of swinging, then of traction, over every node
+        double[] totals = runChunks(executor, chunks, new Chunk() {
+            public double[] run(int from, int to) {
+                double swinging = 0;
+                double traction = 0;
+                int[] cells = new int[64];
+                for (int node = from; node < to; node++) {
+                    cells = computeForce(node, cells);
+                    double swingX = oldForceX[node] - forceX[node];
+                    double swingY = oldForceY[node] - forceY[node];
+                    double tractX = oldForceX[node] + forceX[node];
+                    double tractY = oldForceY[node] + forceY[node];
+                    swinging += mass[node] * Math.sqrt(swingX * swingX + swingY * swingY);
+                    traction += 0.5 * mass[node] * Math.sqrt(tractX * tractX + tractY * tractY);
+                }
+                return new double[]{swinging, traction};
+            }
+        });
+        adjustSpeed(totals[0], totals[1]);
+
+        // Sum of how far each node moved, then of its squared force
+        double[] moved = runChunks(executor, chunks, new Chunk() {
+            public double[] run(int from, int to) {
+                double distance = 0;
+                double squaredForce = 0;
+                for (int node = from; node < to; node++) {
+                    double swingX = oldForceX[node] - forceX[node];
+                    double swingY = oldForceY[node] - forceY[node];
+                    double swinging = mass[node] * Math.sqrt(swingX * swingX + swingY * swingY);
+                    double force = Math.sqrt(forceX[node] * forceX[node] + forceY[node] * forceY[node]);
+                    double factor;
+                    if (adjustSizes && sizes != null) {
+                        // Smaller, capped steps so nodes can slide past each other rather than jump over
+                        factor = 0.1 * speed / (1 + Math.sqrt(speed * swinging));
+                        if (force > 0) factor = Math.min(factor * force, 10) / force;
+                    } else {
+                        factor = speed / (1 + Math.sqrt(speed * swinging));
+                    }
+                    x[node] += forceX[node] * factor;
+                    y[node] += forceY[node] * factor;
+                    distance += force * factor;
+                    squaredForce += force * force;
+                }
+                return new double[]{distance, squaredForce};
+            }
+        });
+        displacement = moved[0] / numNodes;
+        energy = moved[1] / numNodes;
+    }
+
+    /* The speed heuristic from Gephi's ForceAtlas2: speed up while nodes move steadily, slow down when they start to swing */
+    private void adjustSpeed(double totalSwinging, double totalTraction) {
+        if (totalSwinging == 0 || totalTraction == 0) return;
+        double estimatedJitterTolerance = 0.05 * Math.sqrt(numNodes);
+        double minJitterTolerance = Math.sqrt(estimatedJitterTolerance);
+        double maxJitterTolerance = 10;
+        double jitter = jitterTolerance * Math.max(minJitterTolerance,
+                Math.min(maxJitterTolerance, estimatedJitterTolerance * totalTraction / ((double) numNodes * numNodes)));
+        double minSpeedEfficiency = 0.05;
+
+        // Protect against erratic behaviour
+        if (totalSwinging / totalTraction > 2.0) {
+            if (speedEfficiency > minSpeedEfficiency) speedEfficiency *= 0.5;
+            jitter = Math.max(jitter, jitterTolerance);
+        }
+        double targetSpeed = jitter * speedEfficiency * totalTraction / totalSwinging;
+        if (totalSwinging > jitter * totalTraction) {
+            if (speedEfficiency > minSpeedEfficiency) speedEfficiency *= 0.7;
+        } else if (speed < 1000) {
+            speedEfficiency *= 1.3;
+        }
+        // But don't rise too fast, the layout would explode
+        double maxRise = 0.5;
+        speed = speed + Math.min(targetSpeed - speed, maxRise * speed);
+    }
+
+    /* Fills in one node's force: repulsion from everything else, gravity towards the middle and attraction along its edges */
+    private int[] computeForce(int node, int[] cells) {
+        double fx = 0;
+        double fy = 0;
+        double px = x[node];
+        double py = y[node];
+        double m = mass[node];
+
+        // Walk the quadtree, stopping at cells far enough away to treat as one body
+        int top = 0;
+        cells[top++] = 0;
+        while (top > 0) {
+            int cell = cells[--top];
+            double cellM = cellMass[cell];
+            if (cellM == 0) continue;
+            int body = cellBody[cell];
+            if (body >= 0) {
+                if (body == node) continue;
+                double dx = px - x[body];
+                double dy = py - y[body];
+                double factor = repulsionFactor(dx, dy, m, mass[body], (sizes == null) ? 0 : sizes[node] + sizes[body]);
+                fx += dx * factor;
+                fy += dy * factor;
+                continue;
+            }
+            double sumX = cellSumX[cell];
+            double sumY = cellSumY[cell];
+            if (body == AGGREGATE && px >= cellMinX[cell] && px <= cellMinX[cell] + cellWidth[cell]
+                    && py >= cellMinY[cell] && py <= cellMinY[cell] + cellWidth[cell]) {
+                // Lumped in with nodes on top of it, so leave itself out
+                cellM -= m;
+                sumX -= m * px;
+                sumY -= m * py;
+                if (cellM <= 0) continue;
+            }
+            double dx = px - sumX / cellM;
+            double dy = py - sumY / cellM;
+            double distanceSquared = dx * dx + dy * dy;
+            if (body == AGGREGATE || cellWidth[cell] * cellWidth[cell] < theta * theta * distanceSquared) {
+                if (distanceSquared > 0) {
+                    double factor = scaling * m * cellM / distanceSquared;
+                    fx += dx * factor;
+                    fy += dy * factor;
+                }
+            } else {
+                if (top + 4 > cells.length) cells = Arrays.copyOf(cells, cells.length * 2);
+                int child = firstChild[cell];
+                cells[top++] = child;
+                cells[top++] = child + 1;
+                cells[top++] = child + 2;
+                cells[top++] = child + 3;
+            }
+        }
+
+        double distance = Math.sqrt(px * px + py * py);
+        if (distance > 0) {
+            double factor = gravity * m / distance;
+            fx -= px * factor;
+            fy -= py * factor;
+        }
+
+        for (int i = edgeStart[node]; i < edgeStart[node + 1]; i++) {
+            int other = neighbours[i];
+            double dx = px - x[other];
+            double dy = py - y[other];
+            if (adjustSizes && sizes != null && Math.sqrt(dx * dx + dy * dy) - sizes[node] - sizes[other] <= 0) continue;
+            fx -= dx * neighbourWeights[i];
+            fy -= dy * neighbourWeights[i];
+        }
+
+        forceX[node] = fx;
+        forceY[node] = fy;
+        return cells;
+    }
+
+    private double repulsionFactor(double dx, double dy, double m1, double m2, double sizes) {
+        double distanceSquared = dx * dx + dy * dy;
+        if (adjustSizes && sizes > 0) {
+            double distance = Math.sqrt(distanceSquared) - sizes;
+            // Overlapping nodes push apart much harder
+            if (distance > 0) return scaling * m1 * m2 / (distance * distance);
+            if (distance < 0) return 100 * scaling * m1 * m2;
+            return 0;
+        }
+        return (distanceSquared > 0) ? scaling * m1 * m2 / distanceSquared : 0;
+    }
+
+    private void buildTree() {
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int node = 0; node < numNodes; node++) {
+            minX = Math.min(minX, x[node]);
+            minY = Math.min(minY, y[node]);
+            maxX = Math.max(maxX, x[node]);
+            maxY = Math.max(maxY, y[node]);
+        }
+        double width = Math.max(Math.max(maxX - minX, maxY - minY), 1e-6) * 1.0001;
+        minCellWidth = width * MIN_CELL_FRACTION;
+
+        numCells = 0;
+        newCell(minX, minY, width);
+        for (int node = 0; node < numNodes; node++) insert(node);
+    }
+
+    private void insert(int node) {
+        int cell = 0;
+        while (true) {
+            if (cellBody[cell] != INTERNAL) {
+                if (cellBody[cell] == EMPTY) {
+                    cellBody[cell] = node;
+                    addMass(cell, node);
+                    return;
+                }
+                if (cellBody[cell] == AGGREGATE || cellWidth[cell] < minCellWidth) {
+                    cellBody[cell] = AGGREGATE;
+                    addMass(cell, node);
+                    return;
+                }
+                // Split the cell, moving the node already in it down a level
+                int existing = cellBody[cell];
+                double half = cellWidth[cell] / 2;
+                int child = newCell(cellMinX[cell], cellMinY[cell], half);
+                newCell(cellMinX[cell] + half, cellMinY[cell], half);
+                newCell(cellMinX[cell], cellMinY[cell] + half, half);
+                newCell(cellMinX[cell] + half, cellMinY[cell] + half, half);
+                firstChild[cell] = child;
+                cellBody[cell] = INTERNAL;
+                int quadrant = quadrant(cell, existing);
+                cellBody[quadrant] = existing;
+                addMass(quadrant, existing);
+            }
+            addMass(cell, node);
+            cell = quadrant(cell, node);
+        }
+    }
+
+    private int quadrant(int cell, int node) {
+        double half = cellWidth[cell] / 2;
+        int quadrant = 0;
+        if (x[node] >= cellMinX[cell] + half) quadrant += 1;
+        if (y[node] >= cellMinY[cell] + half) quadrant += 2;
+        return firstChild[cell] + quadrant;
+    }
+
+    private void addMass(int cell, int node) {
+        cellMass[cell] += mass[node];
+        cellSumX[cell] += mass[node] * x[node];
+        cellSumY[cell] += mass[node] * y[node];
+    }
+
+    private int newCell(double minX, double minY, double width) {
+        if (numCells == cellMass.length) {
+            int capacity = Math.max(1024, cellMass.length * 2);
+            cellMass = Arrays.copyOf(cellMass, capacity);
+            cellSumX = Arrays.copyOf(cellSumX, capacity);
+            cellSumY = Arrays.copyOf(cellSumY, capacity);
+            cellMinX = Arrays.copyOf(cellMinX, capacity);
+            cellMinY = Arrays.copyOf(cellMinY, capacity);
+            cellWidth = Arrays.copyOf(cellWidth, capacity);
+            cellBody = Arrays.copyOf(cellBody, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+        }
+        int cell = numCells++;
+        cellMass[cell] = 0;
+        cellSumX[cell] = 0;
+        cellSumY[cell] = 0;
+        cellMinX[cell] = minX;
+        cellMinY[cell] = minY;
+        cellWidth[cell] = width;
+        cellBody[cell] = EMPTY;
+        firstChild[cell] = -1;
+        return cell;
+    }
+
+    /* Nodes all at the origin (as they are when nobody has placed them) get scattered over a square that suits their number */
+    private void scatterIfUnplaced(long seed) {
+        for (int node = 0; node < numNodes; node++) {
+            if (x[node] != 0 || y[node] != 0) return;
+        }
+        Random random = new Random(seed);
+        double width = 10 * Math.sqrt(numNodes);
+        for (int node = 0; node < numNodes; node++) {
+            x[node] = (random.nextDouble() - 0.5) * width;
+            y[node] = (random.nextDouble() - 0.5) * width;
+        }
+    }
+
+    /* Some work over a range of nodes, returning sums to be added up across all the ranges */
+    private interface Chunk {
+        double[] run(int from, int to);
+    }
+
+    private double[] runChunks(ExecutorService executor, int chunks, final Chunk chunk) throws InterruptedException, ExecutionException {
+        if (executor == null) return chunk.run(0, numNodes);
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+        for (int i = 0; i < chunks; i++) {
+            final int from = (int) ((long) numNodes * i / chunks);
+            final int to = (int) ((long) numNodes * (i + 1) / chunks);
+            tasks.add(new Callable<double[]>() {
+                public double[] call() {
+                    return chunk.run(from, to);
+                }
+            });
+        }
+        double[] totals = null;
+        for (Future<double[]> future : executor.invokeAll(tasks)) {
+            double[] sums = future.get();
+            if (totals == null) totals = sums.clone();
+            else for (int i = 0; i < sums.length; i++) totals[i] += sums[i];
+        }
+        return totals;
+    }
+}
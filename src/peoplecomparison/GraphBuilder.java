@@ -4,8 +4,6 @@ import com.itextpdf.text.*;
 import org.gephi.graph.api.*;
 import org.gephi.io.exporter.api.*;
 import org.gephi.io.exporter.preview.*;
-import org.gephi.layout.plugin.*;
-import org.gephi.layout.plugin.forceAtlas.*;
 import org.gephi.preview.api.*;
 import org.gephi.preview.types.*;
 import org.gephi.project.api.*;
@@ -13,7 +11,7 @@ import org.openide.util.*;
 
 import java.awt.*;
 import java.io.*;
-import java.util.concurrent.*;
+import java.util.*;
 
 /**
  * Manages the node graph model (in memory)
@@ -21,7 +19,10 @@ import java.util.concurrent.*;
  */
 public class GraphBuilder {
     private GraphModel graphModel;
-    private static final float SIZE_CORRECTION_FACTOR = 0.5f;
+    // The most time to give the layout (in milliseconds), though it usually settles well before then
+    private long layoutTimeBudget = 60 * 1000;
+    // Set once the nodes have been placed by someone else, so export doesn't lay them out again
+    private boolean laidOut = false;
 
     public GraphBuilder() {
         ProjectController pc = Lookup.getDefault().lookup(ProjectController.class);
@@ -32,11 +33,7 @@ public class GraphBuilder {
     }
 
     public void setSize(String idNode, float size) {
-        size = SIZE_CORRECTION_FACTOR * (float) Math.log10(1 + size);
-
-        if (size < 1f) {
-            size += 1f;
-        }
+        size = ForceAtlas2Layout.nodeSize(size);
 
         Node node = findOrCreateNode(idNode);
         node.getNodeData().setSize(size);
@@ -47,6 +44,10 @@ public class GraphBuilder {
         node.getNodeData().setAlpha(alpha);
     }
 
+    public void setLayoutTimeBudget(long layoutTimeBudget) {
+        this.layoutTimeBudget = layoutTimeBudget;
+    }
+
     public void setColor(String idNode, float r, float g, float b) {
         Node node = findOrCreateNode(idNode);
         node.getNodeData().setColor(r, g, b);
@@ -58,18 +59,50 @@ public class GraphBuilder {
     }*/
 
     public void addUndirectedRelation(String idSource, String idTarget, double weight) {
-        System.out.println(idSource + " <-- (" + weight + ") --> " + idTarget);
+        if (Metrics.isVerbose(Metrics.DETAILED)) System.out.println(idSource + " <-- (" + weight + ") --> " + idTarget);
+        Metrics.count("edges");
         Node source = findOrCreateNode(idSource);
         Node target = findOrCreateNode(idTarget);
         buildEdge(source, target, (float)weight);
     }
 
+    /**
+     * Adds a node for every ID and then all the edges between them (given by position in ids) in one pass, which is much
+     * quicker than an addUndirectedRelation per edge
+     */
+    public void addGraph(java.util.List<String> ids, EdgeList edges) {
+        Node[] nodes = new Node[ids.size()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = findOrCreateNode(ids.get(i));
+        for (int e = 0; e < edges.size(); e++) {
+            buildEdge(nodes[edges.getSource(e)], nodes[edges.getTarget(e)], (float) edges.getWeight(e));
+            if (Metrics.isVerbose(Metrics.DETAILED)) System.out.println(ids.get(edges.getSource(e)) + " <-- (" + edges.getWeight(e) + ") --> " + ids.get(edges.getTarget(e)));
+        }
+        Metrics.count("edges", edges.size());
+    }
+
+    /**
+     * Places each node where a layout we've already run put it (ids in the same order as the layout's nodes)
+     */
+    public void setPositions(java.util.List<String> ids, ForceAtlas2Layout layout) {
+        for (int i = 0; i < ids.size(); i++) {
+            Node node = findOrCreateNode(ids.get(i));
+            node.getNodeData().setX((float) layout.getX(i));
+            node.getNodeData().setY((float) layout.getY(i));
+        }
+        laidOut = true;
+    }
+
     public void export(String format, String fileName) throws IOException {
         System.out.println("Exporting as " + format + " to " + fileName);
         FileOutputStream fos = new FileOutputStream(fileName);
         configurePreview();
 
-        configureLayout();
+        long start;
+        if (!laidOut) {
+            start = System.nanoTime();
+            configureLayout();
+            Metrics.time("layout", start);
+        }
 
         ProjectController pc = Lookup.getDefault().lookup(ProjectController.class);
         Workspace workspace = pc.getCurrentWorkspace();
@@ -79,20 +112,49 @@ public class GraphBuilder {
         pdfExporter.setPageSize(PageSize.A0);
         pdfExporter.setWorkspace(workspace);
 
+        start = System.nanoTime();
         ec.exportStream(fos, pdfExporter);
         fos.flush();
+        Metrics.time("export", start);
     }
 
+    /* Lays the graph out with our own multithreaded ForceAtlas2, which stops once the layout has settled rather than after a fixed time */
     private void configureLayout() {
-        AutoLayout autoLayout = new AutoLayout(1, TimeUnit.MINUTES);
-        autoLayout.setGraphModel(graphModel);
-
-        ForceAtlasLayout layout = new ForceAtlasLayout(null);
-        AutoLayout.DynamicProperty adjustBySizeProperty = AutoLayout.createDynamicProperty("forceAtlas.adjustSizes.name", Boolean.TRUE, 0.1f); // True after 10% of layout time
-        AutoLayout.DynamicProperty repulsionProperty = AutoLayout.createDynamicProperty("forceAtlas.repulsionStrength.name", new Double(500.), 0f); // 500 for the complete period
-        autoLayout.addLayout(layout, 1f, new AutoLayout.DynamicProperty[]{ adjustBySizeProperty, repulsionProperty });
+        Graph graph = graphModel.getUndirectedGraph();
+        Node[] nodes = graph.getNodes().toArray();
+        Map<Node, Integer> index = new HashMap<Node, Integer>();
+        float[] x = new float[nodes.length];
+        float[] y = new float[nodes.length];
+        float[] sizes = new float[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            index.put(nodes[i], i);
+            x[i] = nodes[i].getNodeData().x();
+            y[i] = nodes[i].getNodeData().y();
+            sizes[i] = nodes[i].getNodeData().getSize();
+        }
+        Edge[] edges = graph.getEdges().toArray();
+        int[] sources = new int[edges.length];
+        int[] targets = new int[edges.length];
+        double[] weights = new double[edges.length];
+        for (int e = 0; e < edges.length; e++) {
+            sources[e] = index.get(edges[e].getSource());
+            targets[e] = index.get(edges[e].getTarget());
+            weights[e] = edges[e].getWeight();
+        }
 
-        autoLayout.execute();
+        ForceAtlas2Layout layout = new ForceAtlas2Layout(nodes.length, sources, targets, weights);
+        layout.setPositions(x, y);
+        // Keep the nodes from sitting on top of each other, so their labels can be read
+        layout.setSizes(sizes);
+        layout.setAdjustSizes(true);
+        layout.setTimeBudget(layoutTimeBudget);
+        layout.run();
+        layout.printReport();
+
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].getNodeData().setX((float) layout.getX(i));
+            nodes[i].getNodeData().setY((float) layout.getY(i));
+        }
     }
 
     private void configurePreview() {
@@ -0,0 +1,290 @@
+package peoplecomparison;
+
+import java.util.*;
+
+/**
+ * Picks which of the n^2 relationships between people are worth drawing, so the graph grows in line with the number of
+ * people rather than with its square.
+ *
+ * Every method takes distances (from a SimilarityMatrix or a nearest neighbour graph) and weights each edge by the
+ * inverse of its distance, as PeopleComparison always has. Edges weaker than minWeight are never kept.
+ *
+ * THRESHOLD keeps everything above minWeight (how the graph used to be built, fine for a few dozen people).
+ * K_NEAREST keeps each person's k strongest edges, so everyone is linked to someone.
+ * TOP_K keeps only the edges in both ends' k strongest, so nobody has more than k.
+ * BACKBONE is the disparity filter (Serrano, Boguna and Vespignani 2009). It keeps an edge if it carries much more of
+ * either end's total weight than it would if that end's weight were spread at random, at significance level alpha.
+ * This keeps the strong links at every scale, whether someone has many or few.
+ */
+public class GraphSparsifier {
+
+    public enum Method {THRESHOLD, K_NEAREST, TOP_K, BACKBONE}
+
+    private GraphSparsifier() {
+    }
+
+    /**
+     * Sparsifies the full matrix with the given method, reading it a row at a time. k is only used by K_NEAREST and
+     * TOP_K, alpha only by BACKBONE
+     */
+    public static EdgeList sparsify(SimilarityMatrix distances, Method method, double minWeight, int k, double alpha) {
+        switch (method) {
+            case THRESHOLD:
+                return threshold(distances, minWeight);
+            case K_NEAREST:
+                return nearest(distances, minWeight, k, false);
+            case TOP_K:
+                return nearest(distances, minWeight, k, true);
+            case BACKBONE:
+                return backbone(distances, minWeight, alpha);
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * As above, for edges we already have (e.g. from a nearest neighbour index). K_NEAREST keeps each node's k strongest
+     * of them
+     */
+    public static EdgeList sparsify(EdgeList edges, int numNodes, Method method, double minWeight, int k, double alpha) {
+        switch (method) {
+            case THRESHOLD:
+                return threshold(edges, minWeight);
+            case K_NEAREST:
+                return nearest(edges, numNodes, minWeight, k, false);
+            case TOP_K:
+                return nearest(edges, numNodes, minWeight, k, true);
+            case BACKBONE:
+                return backbone(edges, numNodes, minWeight, alpha);
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    public static void printReport(Method method, EdgeList edges, int numNodes) {
+        System.out.printf(Locale.US, "Kept %d edges with %s (%.1f per person)%n", edges.size(), method.name().toLowerCase(), numNodes == 0 ? 0.0 : 2.0 * edges.size() / numNodes);
+    }
+
+    private static EdgeList threshold(SimilarityMatrix distances, double minWeight) {
+        int n = distances.size();
+        EdgeList edges = new EdgeList();
+        double[] row = new double[n];
+        for (int i = 0; i < n; i++) {
+            distances.getRow(i, row);
+            for (int j = i + 1; j < n; j++) {
+                double weight = weight(row[j]);
+                if (weight > minWeight) edges.add(i, j, weight);
+            }
+        }
+        return edges;
+    }
+
+    private static EdgeList threshold(EdgeList edges, double minWeight) {
+        EdgeList kept = new EdgeList();
+        for (int e = 0; e < edges.size(); e++) {
+            if (edges.getWeight(e) > minWeight) kept.add(edges.getSource(e), edges.getTarget(e), edges.getWeight(e));
+        }
+        return kept;
+    }
+
+    /* Each node's k strongest edges, and then either every edge in either end's k (K_NEAREST) or only those in both ends' (TOP_K) */
+    private static EdgeList nearest(SimilarityMatrix distances, double minWeight, int k, boolean mutual) {
+        int n = distances.size();
+        k = Math.min(k, n - 1);
+        int[][] best = new int[n][];
+        double[][] bestWeights = new double[n][];
+        double[] row = new double[n];
+        TopK top = new TopK(k);
+        for (int i = 0; i < n; i++) {
+            distances.getRow(i, row);
+            top.clear();
+            for (int j = 0; j < n; j++) {
+                if (j == i) continue;
+                double weight = weight(row[j]);
+                if (weight > minWeight) top.offer(j, weight);
+            }
+            best[i] = top.ids();
+            bestWeights[i] = top.weights();
+        }
+        return combine(best, bestWeights, mutual);
+    }
+
+    private static EdgeList nearest(EdgeList edges, int numNodes, double minWeight, int k, boolean mutual) {
+        List<TopK> tops = new ArrayList<TopK>(numNodes);
+        for (int node = 0; node < numNodes; node++) tops.add(null);
+        for (int e = 0; e < edges.size(); e++) {
+            double weight = edges.getWeight(e);
+            if (weight <= minWeight) continue;
+            offer(tops, edges.getSource(e), edges.getTarget(e), weight, k);
+            offer(tops, edges.getTarget(e), edges.getSource(e), weight, k);
+        }
+        int[][] best = new int[numNodes][];
+        double[][] bestWeights = new double[numNodes][];
+        for (int node = 0; node < numNodes; node++) {
+            TopK top = tops.get(node);
+            best[node] = (top == null) ? new int[0] : top.ids();
+            bestWeights[node] = (top == null) ? new double[0] : top.weights();
+        }
+        return combine(best, bestWeights, mutual);
+    }
+
+    private static void offer(List<TopK> tops, int node, int other, double weight, int k) {
+        TopK top = tops.get(node);
+        if (top == null) {
+            top = new TopK(k);
+            tops.set(node, top);
+        }
+        top.offer(other, weight);
+    }
+
+    /* Turns each node's best neighbours into edges, each pair only once with the lower index as the source */
+    private static EdgeList combine(int[][] best, double[][] bestWeights, boolean mutual) {
+        EdgeList edges = new EdgeList();
+        for (int i = 0; i < best.length; i++) {
+            for (int b = 0; b < best[i].length; b++) {
+                int j = best[i][b];
+                boolean reciprocated = contains(best[j], i);
+                if (mutual ? (reciprocated && i < j) : (i < j || !reciprocated)) {
+                    edges.add(Math.min(i, j), Math.max(i, j), bestWeights[i][b]);
+                }
+            }
+        }
+        return edges;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int other : ids) {
+            if (other == id) return true;
+        }
+        return false;
+    }
+
+    /* Two passes over the matrix, one for each node's strength and degree and one to test each edge, so only O(n) is held */
+    private static EdgeList backbone(SimilarityMatrix distances, double minWeight, double alpha) {
+        int n = distances.size();
+        double[] strength = new double[n];
+        int[] degree = new int[n];
+        double[] row = new double[n];
+        for (int i = 0; i < n; i++) {
+            distances.getRow(i, row);
+            for (int j = i + 1; j < n; j++) {
+                double weight = weight(row[j]);
+                if (weight <= minWeight) continue;
+                strength[i] += weight;
+                strength[j] += weight;
+                degree[i]++;
+                degree[j]++;
+            }
+        }
+        EdgeList edges = new EdgeList();
+        for (int i = 0; i < n; i++) {
+            distances.getRow(i, row);
+            for (int j = i + 1; j < n; j++) {
+                double weight = weight(row[j]);
+                if (weight > minWeight && isSignificant(weight, i, j, strength, degree, alpha)) edges.add(i, j, weight);
+            }
+        }
+        return edges;
+    }
+
+    private static EdgeList backbone(EdgeList edges, int numNodes, double minWeight, double alpha) {
+        double[] strength = new double[numNodes];
+        int[] degree = new int[numNodes];
+        for (int e = 0; e < edges.size(); e++) {
+            double weight = edges.getWeight(e);
+            if (weight <= minWeight) continue;
+            strength[edges.getSource(e)] += weight;
+            strength[edges.getTarget(e)] += weight;
+            degree[edges.getSource(e)]++;
+            degree[edges.getTarget(e)]++;
+        }
+        EdgeList kept = new EdgeList();
+        for (int e = 0; e < edges.size(); e++) {
+            double weight = edges.getWeight(e);
+            if (weight > minWeight && isSignificant(weight, edges.getSource(e), edges.getTarget(e), strength, degree, alpha)) {
+                kept.add(edges.getSource(e), edges.getTarget(e), weight);
+            }
+        }
+        return kept;
+    }
+
+    /*
+     * The chance that, if a node's strength were split between its edges uniformly at random, this edge would get at
+     * least this big a share is (1 - share)^(degree - 1). An edge is significant if that's below alpha for either end
+     */
+    private static boolean isSignificant(double weight, int i, int j, double[] strength, int[] degree, double alpha) {
+        return pValue(weight, strength[i], degree[i]) < alpha || pValue(weight, strength[j], degree[j]) < alpha;
+    }
+
+    private static double pValue(double weight, double strength, int degree) {
+        // A node with one edge can't tell us anything about it, leave that to the other end
+        if (degree <= 1) return 1;
+        return Math.pow(1 - weight / strength, degree - 1);
+    }
+
+    /* Edges are weighted by the inverse of distance. Identical distributions (distance 0) get the strongest weight we can still add up */
+    static double weight(double distance) {
+        return 1 / Math.max(distance, 1e-12);
+    }
+
+    /* The k highest weighted IDs offered, in a min-heap */
+    private static class TopK {
+        private final int k;
+        private int[] ids;
+        private double[] weights;
+        private int size = 0;
+
+        TopK(int k) {
+            this.k = Math.max(0, k);
+            int capacity = Math.min(this.k, 16);
+            ids = new int[capacity];
+            weights = new double[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void offer(int id, double weight) {
+            if (k == 0) return;
+            if (size < k) {
+                if (size == ids.length) {
+                    int capacity = (int) Math.min(k, ids.length * 2L);
+                    ids = Arrays.copyOf(ids, capacity);
+                    weights = Arrays.copyOf(weights, capacity);
+                }
+                int i = size++;
+                // Sift up
+                while (i > 0 && weights[(i - 1) / 2] > weight) {
+                    ids[i] = ids[(i - 1) / 2];
+                    weights[i] = weights[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                ids[i] = id;
+                weights[i] = weight;
+            } else if (weight > weights[0]) {
+                // Replace the weakest and sift down
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && weights[child + 1] < weights[child]) child++;
+                    if (weights[child] >= weight) break;
+                    ids[i] = ids[child];
+                    weights[i] = weights[child];
+                    i = child;
+                }
+                ids[i] = id;
+                weights[i] = weight;
+            }
+        }
+
+        int[] ids() {
+            return Arrays.copyOf(ids, size);
+        }
+
+        double[] weights() {
+            return Arrays.copyOf(weights, size);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Writes a graph straight to GEXF, GraphML or newline delimited JSON, a node or edge at a time, without Gephi.
+ *
+ * Nothing is held but the output buffer, so graphs with millions of edges can be written in constant memory, and no
+ * AWT or rendering is needed. All the nodes have to be written before any of the edges, which refer to nodes by the
+ * number they were written with. Paths ending in .gz are gzipped.
+ *
+ * Gephi and most other tools read GEXF and GraphML, including the positions and sizes (as the layout kept them apart at).
+ * The JSON is one object per line ({"type":"node",...} or {"type":"edge",...}) for anything downstream that would rather stream.
+ * Weights have to be finite, as none of the formats can hold anything else.
+ */
+public class GraphWriter implements Closeable {
+
+    public enum Format {GEXF, GRAPHML, NDJSON}
+
+    private final Format format;
+    private final Writer out;
+    private int numNodes = 0;
+    private long numEdges = 0;
+    private boolean writingEdges = false;
+
+    public GraphWriter(Format format, File file) throws IOException {
+        this.format = format;
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        if (file.getName().endsWith(".gz")) stream = new GZIPOutputStream(stream, 1 << 16);
+        out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 1 << 16);
+        writeHeader();
+    }
+
+    /**
+     * Writes the whole graph: a node for every name (placed where the layout put it and at the size it used, if there is one) and every edge
+     */
+    public static void export(Format format, File file, List<String> names, EdgeList edges, ForceAtlas2Layout layout) throws IOException {
+        long start = System.nanoTime();
+        System.out.println("Exporting as " + format.name().toLowerCase() + " to " + file);
+        GraphWriter writer = new GraphWriter(format, file);
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                if (layout == null) writer.writeNode(names.get(i), Double.NaN, Double.NaN, Double.NaN);
+                else writer.writeNode(names.get(i), layout.getX(i), layout.getY(i), layout.getSize(i));
+            }
+            for (int e = 0; e < edges.size(); e++) writer.writeEdge(edges.getSource(e), edges.getTarget(e), edges.getWeight(e));
+        } finally {
+            writer.close();
+        }
+        Metrics.time("export", start);
+    }
+
+    /**
+     * Writes the next node, which edges will refer to by the number returned. x and y can be NaN if it hasn't been placed,
+     * and size if it hasn't got one
+     */
+    public int writeNode(String label, double x, double y, double size) throws IOException {
+        if (writingEdges) throw new IllegalStateException("Nodes have to be written before edges");
+        int id = numNodes++;
+        boolean placed = isFinite((float) x) && isFinite((float) y);
+        boolean sized = isFinite((float) size);
+        switch (format) {
+            case GEXF:
+                out.write("      <node id=\"" + id + "\" label=\"" + xml(label) + "\"");
+                if (!placed && !sized) {
+                    out.write("/>\n");
+                } else {
+                    out.write(">\n");
+                    if (placed) out.write("        <viz:position x=\"" + (float) x + "\" y=\"" + (float) y + "\" z=\"0.0\"/>\n");
+                    if (sized) out.write("        <viz:size value=\"" + (float) size + "\"/>\n");
+                    out.write("      </node>\n");
+                }
+                break;
+            case GRAPHML:
+                out.write("    <node id=\"n" + id + "\"><data key=\"label\">" + xml(label) + "</data>");
+                if (placed) out.write("<data key=\"x\">" + (float) x + "</data><data key=\"y\">" + (float) y + "</data>");
+                if (sized) out.write("<data key=\"size\">" + (float) size + "</data>");
+                out.write("</node>\n");
+                break;
+            case NDJSON:
+                out.write("{\"type\":\"node\",\"id\":" + id + ",\"label\":\"" + json(label) + "\"");
+                if (placed) out.write(",\"x\":" + (float) x + ",\"y\":" + (float) y);
+                if (sized) out.write(",\"size\":" + (float) size);
+                out.write("}\n");
+                break;
+        }
+        return id;
+    }
+
+    /**
+     * Writes an undirected edge between two nodes already written
+     */
+    public void writeEdge(int source, int target, double weight) throws IOException {
+        if (source < 0 || source >= numNodes || target < 0 || target >= numNodes) {
+            throw new IllegalArgumentException("Edge from " + source + " to " + target + " but only " + numNodes + " nodes written");
+        }
+        if (!isFinite((float) weight)) throw new IllegalArgumentException("Edge from " + source + " to " + target + " has weight " + weight);
+        if (!writingEdges) {
+            if (format == Format.GEXF) out.write("    </nodes>\n    <edges>\n");
+            writingEdges = true;
+        }
+        long id = numEdges++;
+        switch (format) {
+            case GEXF:
+                out.write("      <edge id=\"" + id + "\" source=\"" + source + "\" target=\"" + target + "\" weight=\"" + (float) weight + "\"/>\n");
+                break;
+            case GRAPHML:
+                out.write("    <edge source=\"n" + source + "\" target=\"n" + target + "\"><data key=\"weight\">" + (float) weight + "</data></edge>\n");
+                break;
+            case NDJSON:
+                out.write("{\"type\":\"edge\",\"source\":" + source + ",\"target\":" + target + ",\"weight\":" + (float) weight + "}\n");
+                break;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            switch (format) {
+                case GEXF:
+                    out.write(writingEdges ? "    </edges>\n" : "    </nodes>\n");
+                    out.write("  </graph>\n</gexf>\n");
+                    break;
+                case GRAPHML:
+                    out.write("  </graph>\n</graphml>\n");
+                    break;
+                case NDJSON:
+                    break;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        switch (format) {
+            case GEXF:
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                out.write("<gexf xmlns=\"http://www.gexf.net/1.2draft\" xmlns:viz=\"http://www.gexf.net/1.2draft/viz\" version=\"1.2\">\n");
+                out.write("  <meta>\n    <creator>PeopleComparison</creator>\n  </meta>\n");
+                out.write("  <graph mode=\"static\" defaultedgetype=\"undirected\">\n    <nodes>\n");
+                break;
+            case GRAPHML:
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                out.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+                out.write("  <key id=\"label\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>\n");
+                out.write("  <key id=\"x\" for=\"node\" attr.name=\"x\" attr.type=\"float\"/>\n");
+                out.write("  <key id=\"y\" for=\"node\" attr.name=\"y\" attr.type=\"float\"/>\n");
+                out.write("  <key id=\"size\" for=\"node\" attr.name=\"size\" attr.type=\"float\"/>\n");
+                out.write("  <key id=\"weight\" for=\"edge\" attr.name=\"weight\" attr.type=\"double\"/>\n");
+                out.write("  <graph id=\"G\" edgedefault=\"undirected\">\n");
+                break;
+            case NDJSON:
+                break;
+        }
+    }
+
+    /* Whether a number (as the float we write it as) can be written in any of the formats (Double.isFinite is Java 8) */
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private static String xml(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&': escaped.append("&amp;"); break;
+                case '<': escaped.append("&lt;"); break;
+                case '>': escaped.append("&gt;"); break;
+                case '"': escaped.append("&quot;"); break;
+                default:
+                    // Control characters other than whitespace aren't allowed in XML at all
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static String json(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') escaped.append('\\').append(c);
+            else if (c < 0x20) escaped.append(String.format("\\u%04x", (int) c));
+            else escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+import cc.mallet.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tries a grid of topic model settings (number of topics, alpha and beta) on one piped corpus, and picks the best.
+ *
+ * The corpus is split once into training and held-out documents. Every setting is fitted on the training documents
+ * with a ConvergentEstimator, then scored by the log likelihood per token it gives the held-out documents (Mallet's
+ * left-to-right estimate), which unlike the training likelihood doesn't just keep improving as we add topics.
+ * Fits run side by side, as many at once as the thread budget allows given the sampler threads each one uses.
+ */
+public class HyperparameterSweep {
+
+    /* One point in the grid */
+    public static class Setting {
+        public final int numTopics;
+        public final double alpha;
+        public final double beta;
+
+        public Setting(int numTopics, double alpha, double beta) {
+            this.numTopics = numTopics;
+            this.alpha = alpha;
+            this.beta = beta;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "topics=%d alpha=%.3f beta=%.3f", numTopics, alpha, beta);
+        }
+    }
+
+    /* How a setting did */
+    public static class Result implements Comparable<Result> {
+        public final Setting setting;
+        public final double heldOutLogLikelihoodPerToken;
+        public final int iterations;
+        public final long elapsedMillis;
+
+        Result(Setting setting, double heldOutLogLikelihoodPerToken, int iterations, long elapsedMillis) {
+            this.setting = setting;
+            this.heldOutLogLikelihoodPerToken = heldOutLogLikelihoodPerToken;
+            this.iterations = iterations;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /* Best (highest held-out likelihood) first */
+        public int compareTo(Result other) {
+            return Double.compare(other.heldOutLogLikelihoodPerToken, heldOutLogLikelihoodPerToken);
+        }
+    }
+
+    // Particles for the left-to-right held-out estimate
+    private static final int NUM_PARTICLES = 10;
+
+    private final InstanceList training;
+    private final InstanceList heldOut;
+    private final long heldOutTokens;
+    private final int threadBudget;
+    private final int maxIterations;
+    private final long timeBudgetMillis;
+    private final int seed;
+
+    /**
+     * @param instances        the piped corpus, shared by every fit
+     * @param heldOutFraction  the fraction of documents to score on rather than train on
+     * @param threadBudget     how many threads all the fits together may use
+     * @param maxIterations    the most iterations for each fit
+     * @param timeBudgetMillis the most time for each fit
+     * @param seed             for the split and the samplers, so a sweep can be repeated
+     */
+    public HyperparameterSweep(InstanceList instances, double heldOutFraction, int threadBudget, int maxIterations, long timeBudgetMillis, int seed) {
+        // Keep at least one document on each side of the split
+        int numHeldOut = Math.max(1, Math.min(instances.size() - 1, (int) Math.round(instances.size() * heldOutFraction)));
+        InstanceList[] split = instances.split(new Random(seed), new double[]{instances.size() - numHeldOut, numHeldOut});
+        this.training = split[0];
+        this.heldOut = split[1];
+        long tokens = 0;
+        for (Instance instance : heldOut) tokens += ((FeatureSequence) instance.getData()).getLength();
+        this.heldOutTokens = tokens;
+        this.threadBudget = Math.max(1, threadBudget);
+        this.maxIterations = maxIterations;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.seed = seed;
+    }
+
+    /**
+     * Every combination of the given topic counts, alphas and betas
+     */
+    public static List<Setting> grid(int[] numTopics, double[] alphas, double[] betas) {
+        List<Setting> settings = new ArrayList<Setting>();
+        for (int topics : numTopics) {
+            for (double alpha : alphas) {
+                for (double beta : betas) settings.add(new Setting(topics, alpha, beta));
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Fits and scores every setting, returning the results best first
+     */
+    public List<Result> run(List<Setting> settings) {
+        // Give each fit the sampler threads the training set can keep busy, and run as many fits at once as that leaves room for
+        final int threadsPerFit = Math.min(ConvergentEstimator.chooseNumThreads(training), threadBudget);
+        int parallelFits = Math.max(1, Math.min(settings.size(), threadBudget / threadsPerFit));
+        System.out.println("Sweeping " + settings.size() + " settings on " + training.size() + " documents, scoring on " + heldOut.size()
+                + " (" + parallelFits + " at a time, " + threadsPerFit + " sampler threads each)");
+
+        ExecutorService pool = Executors.newFixedThreadPool(parallelFits);
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (final Setting setting : settings) {
+            futures.add(pool.submit(new Callable<Result>() {
+                public Result call() throws Exception {
+                    return fit(setting, threadsPerFit);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<Result> results = new ArrayList<Result>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                System.out.println("Couldn't fit " + settings.get(i));
+                e.getCause().printStackTrace();
+            }
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    public static void printResults(List<Result> results) {
+        System.out.println("Topics\tAlpha\tBeta\tHeld-out LL/token\tIterations\tSeconds");
+        for (Result result : results) {
+            System.out.printf(Locale.US, "%d\t\t%.3f\t%.3f\t%.5f\t\t\t%d\t\t\t%.1f%n", result.setting.numTopics, result.setting.alpha, result.setting.beta,
+                    result.heldOutLogLikelihoodPerToken, result.iterations, result.elapsedMillis / 1000.0);
+        }
+        if (!results.isEmpty()) System.out.println("Best: " + results.get(0).setting);
+    }
+
+    private Result fit(Setting setting, int numThreads) throws IOException {
+        long start = System.currentTimeMillis();
+        ParallelTopicModel model = MalletUtil.newTopicModel(training, setting.numTopics, setting.alpha, setting.beta, numThreads, seed);
+        ConvergentEstimator estimator = new ConvergentEstimator(maxIterations, timeBudgetMillis);
+        estimator.estimate(model);
+
+        double logLikelihood = seededProbEstimator(model).evaluateLeftToRight(heldOut, NUM_PARTICLES, false, null);
+        double perToken = (heldOutTokens == 0) ? 0 : logLikelihood / heldOutTokens;
+        // Only the score is kept, the model goes as soon as the fit is done (the winner is retrained on everything anyway)
+        return new Result(setting, perToken, estimator.getIterations(), System.currentTimeMillis() - start);
+    }
+
+    /* The same estimator as model.getProbEstimator(), but with its particles seeded so the score can be repeated too */
+    private MarginalProbEstimator seededProbEstimator(ParallelTopicModel model) {
+        return new MarginalProbEstimator(model.numTopics, model.alpha, model.alphaSum, model.beta, model.typeTopicCounts, model.tokensPerTopic) {
+            private final Randoms seeded = new Randoms(seed);
+
+            // evaluateLeftToRight swaps in an unseeded Randoms before it starts, so put ours back for every document
+            @Override
+            protected double[] leftToRight(FeatureSequence tokens, boolean usingResampling) {
+                random = seeded;
+                return super.leftToRight(tokens, usingResampling);
+            }
+        };
+    }
+}
@@ -22,6 +22,12 @@ import java.util.regex.*;
 public final class MalletUtil {
 
     private static Pipe pipe;
+    // Describes what buildPipe() does. Change this whenever the pipe changes so cached feature sequences get rebuilt
+    public static final String PIPE_SIGNATURE = "\\b[A-Za-z]{3}[A-Za-z]*\\b|lowercase|stopwords|features";
+    // What constitutes a token: three or more letters
+    private static final String TOKEN_REGEX = "\\b[A-Za-z]{3}[A-Za-z]*\\b";
+    // The fewest iterations to run after a warm start
+    private static final int WARM_START_MIN_ITERATIONS = 20;
 
     private MalletUtil() {
     }
@@ -32,35 +38,155 @@ public final class MalletUtil {
     }
 
     /*
-     * Take a list of instances and run LDA on them
+     * Returns a pipe that tokenizes text the same way as getPipe(), but stops at a TokenSequence rather than looking
+     * the words up in an alphabet, for models that can't let an alphabet grow without limit (e.g. OnlineTopicModel)
+     */
+    public static Pipe getTokenPipe() {
+        return new SerialPipes(buildTokenPipes());
+    }
+
+    /*
+     * Take a list of instances and run LDA on them for a fixed number of iterations
      */
     public static ParallelTopicModel doTopicModel (InstanceList instances, double alpha, int iterations) {
 
-        // Set the number of topics to be a minimum of 5 (for very low numbers of documents) and a maximum of 50 (for high numbers of documents)
-        int numTopics;
-        if (instances.size() < 5) numTopics = 5;
-        else if (instances.size() < 10) numTopics = instances.size();
-        else if (instances.size() < 500) numTopics = 10 + (int)((0.09*instances.size())+0.5); // Linearly smooth from 5 to 50 topics
-        else numTopics = 50;
+        ParallelTopicModel model = newTopicModel(instances, alpha);
 
-        System.out.println("Using " + numTopics + " topics");
+        model.setNumIterations(iterations);
+        try {
+            long start = System.nanoTime();
+            model.estimate();
+            Metrics.record("lda_iteration", System.nanoTime() - start, iterations);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-        // Create a model with X topics, alpha_t = 0.2, beta_w = 0.01
-        // Note that the first parameter is passed as the sum over topics, while
-        // the second is the parameter for a single dimension of the Dirichlet prior.
-        ParallelTopicModel model = new ParallelTopicModel(numTopics, alpha, 0.01);
+        printTopics(model, instances);
+        return model;
+    }
 
-        model.addInstances(instances);
+    /*
+     * Take a list of instances and run LDA on them until the model converges, we run out of time or we hit maxIterations
+     */
+    public static ParallelTopicModel doTopicModel (InstanceList instances, double alpha, int maxIterations, long timeBudgetMillis) {
+        return doTopicModel(instances, alpha, maxIterations, timeBudgetMillis, null, 0);
+    }
 
-        // Use two parallel samplers, which each look at one half the corpus and combine statistics after every iteration.
-        model.setNumThreads(2);
+    /*
+     * As above, but checkpoints the sampler state to checkpointFile every checkpointInterval iterations, and resumes
+     * from the checkpoint if a previous run on the same instances was cut short
+     */
+    public static ParallelTopicModel doTopicModel (InstanceList instances, double alpha, int maxIterations, long timeBudgetMillis,
+                                                   File checkpointFile, int checkpointInterval) {
+        return doTopicModel(instances, defaultNumTopics(instances.size()), alpha, 0.01, maxIterations, timeBudgetMillis, checkpointFile, checkpointInterval);
+    }
 
-        model.setNumIterations(iterations);
+    /*
+     * As above, but with the number of topics and beta given rather than worked out (e.g. the winner of a HyperparameterSweep)
+     */
+    public static ParallelTopicModel doTopicModel (InstanceList instances, int numTopics, double alpha, double beta, int maxIterations,
+                                                   long timeBudgetMillis, File checkpointFile, int checkpointInterval) {
+
+        ParallelTopicModel model = newTopicModel(instances, numTopics, alpha, beta);
+
+        ConvergentEstimator estimator = new ConvergentEstimator(maxIterations, timeBudgetMillis);
+        SamplerCheckpoint checkpoint = null;
+        if (checkpointFile != null) {
+            checkpoint = new SamplerCheckpoint(checkpointFile);
+            estimator.setCheckpoint(checkpoint, checkpointInterval);
+        }
+        boolean finished = false;
         try {
-            model.estimate();
+            estimator.estimate(model);
+            finished = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (checkpoint != null) checkpoint.close(finished);
+        }
+        estimator.printTrajectory();
+
+        printTopics(model, instances);
+        return model;
+    }
+
+    /*
+     * Take a list of instances and carry on from a previously trained model: the unchanged documents keep their topic
+     * assignments and the rest are seeded from the previous model, so it converges in far fewer iterations than from scratch
+     */
+    public static ParallelTopicModel doTopicModel (InstanceList instances, ParallelTopicModel previous, Set<String> unchanged, int maxIterations, long timeBudgetMillis) {
+
+        int numThreads = ConvergentEstimator.chooseNumThreads(instances);
+        System.out.println("Warm starting from the previous " + previous.getNumTopics() + " topic model, using " + numThreads + " sampler threads");
+        WarmStart warmStart = new WarmStart(previous, 42);
+        ParallelTopicModel model = warmStart.initialize(instances, unchanged, numThreads);
+        warmStart.printReport();
+        // Alpha and beta come from the previous model, which was already burnt in and optimised, so keep optimising them from the start
+        model.setBurninPeriod(0);
+
+        // Most of the model is already settled, so don't insist on the usual minimum run before checking for convergence
+        ConvergentEstimator estimator = new ConvergentEstimator(maxIterations, timeBudgetMillis);
+        estimator.setMinIterations(Math.min(WARM_START_MIN_ITERATIONS, maxIterations));
+        try {
+            estimator.estimate(model);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        estimator.printTrajectory();
+
+        printTopics(model, instances);
+        return model;
+    }
+
+    /* Creates a model for the instances, with a number of topics and sampler threads to suit the corpus */
+    private static ParallelTopicModel newTopicModel(InstanceList instances, double alpha) {
+        return newTopicModel(instances, defaultNumTopics(instances.size()), alpha, 0.01);
+    }
+
+    /* Creates a model for the instances with the given number of topics, alpha and beta, and sampler threads to suit the corpus */
+    private static ParallelTopicModel newTopicModel(InstanceList instances, int numTopics, double alpha, double beta) {
+
+        // Use parallel samplers, which each look at part of the corpus and combine statistics after every iteration.
+        // One per core, unless the corpus is too small to keep them all busy
+        int numThreads = ConvergentEstimator.chooseNumThreads(instances);
+        System.out.println("Using " + numTopics + " topics and " + numThreads + " sampler threads");
+        return newTopicModel(instances, numTopics, alpha, beta, numThreads);
+    }
+
+    /* Creates a model for the instances with the given number of topics, alpha, beta and sampler threads */
+    static ParallelTopicModel newTopicModel(InstanceList instances, int numTopics, double alpha, double beta, int numThreads) {
+        return newTopicModel(instances, numTopics, alpha, beta, numThreads, -1);
+    }
+
+    /* As above, seeding the random initial topics and the sampler (unless seed is -1, Mallet's unseeded default) */
+    static ParallelTopicModel newTopicModel(InstanceList instances, int numTopics, double alpha, double beta, int numThreads, int seed) {
+
+        // Create a model with X topics, alpha_t = alpha / X, beta_w = beta
+        // Note that the first parameter is passed as the sum over topics, while
+        // the second is the parameter for a single dimension of the Dirichlet prior.
+        ParallelTopicModel model = new ParallelTopicModel(numTopics, alpha, beta);
+
+        // Before the instances go in, as that's when they get their random initial topics
+        model.setRandomSeed(seed);
+        model.addInstances(instances);
+        model.setNumThreads(numThreads);
+        return model;
+    }
+
+    /*
+     * How many topics to use for this many documents: a minimum of 5 (for very low numbers of documents) and a maximum of 50 (for high numbers of documents)
+     */
+    public static int defaultNumTopics(int numDocs) {
+        if (numDocs < 5) return 5;
+        else if (numDocs < 10) return numDocs;
+        else if (numDocs < 500) return 10 + (int)((0.09*numDocs)+0.5); // Linearly smooth from 5 to 50 topics
+        else return 50;
+    }
+
+    /* Prints the top words in each topic, and the topic weights of each document */
+    private static void printTopics(ParallelTopicModel model, InstanceList instances) {
+
+        int numTopics = model.getNumTopics();
 
         // From now on we're just printing interesting information to the console
 
@@ -84,6 +210,9 @@ public final class MalletUtil {
             System.out.println(out);
         }
 
+        // A line per document is too much on large runs
+        if (!Metrics.isVerbose(Metrics.DETAILED)) return;
+
         // Print out topic matrix by document, starting with a header
         System.out.println("\nListing topic weights by document");
         StringBuilder sb = new StringBuilder();
@@ -101,46 +230,91 @@ public final class MalletUtil {
             }
             System.out.printf("%-15s %s%n", name, out);
         }
-
-        return model;
-
     }
 
     /*
      * Take a model where LDA has been run and figure out the similarities
      * between the documents in it, based on their topic distributions
      */
-    public static double[][] findSimilarities(ParallelTopicModel model) {
+    public static SimilarityMatrix findSimilarities(ParallelTopicModel model) {
+        return findSimilarities(model, SimilarityEngine.Measure.KL_DIVERGENCE, true);
+    }
 
-        int totInstances = model.getData().size();
+    /*
+     * As above, with a choice of measure and whether to print the matrix to the console
+     */
+    public static SimilarityMatrix findSimilarities(ParallelTopicModel model, SimilarityEngine.Measure measure, boolean print) {
+        SimilarityMatrix sims = SimilarityMatrix.create(model.getData().size(), SimilarityMatrix.Precision.DOUBLE);
+        findSimilarities(model, measure, print, sims);
+        return sims;
+    }
 
-        // Our final matrix of all similarities
-        double[][] sims = new double[totInstances][totInstances];
+    /*
+     * As above, filling in a matrix we've already created (e.g. off heap or in a mapped file)
+     */
+    public static void findSimilarities(ParallelTopicModel model, SimilarityEngine.Measure measure, boolean print, SimilarityMatrix sims) {
+        List<String> names = new ArrayList<String>();
+        for (TopicAssignment doc : model.getData()) names.add((String) doc.instance.getName());
+        findSimilarities(SimilarityEngine.getTopicMatrix(model), model.getNumTopics(), names, measure, print, sims);
+    }
 
-        System.out.println("\nFinding document similarities");
-        // First print matrix header
-        Formatter out = new Formatter(new StringBuilder(), Locale.US);
-        for (int instID = 1; instID < totInstances; instID++) {
-            out.format("%-15s", model.getData().get(instID).instance.getName());
-        }
-        System.out.printf("%-15s %s%n", "", out);
-        for (int instID1 = 0; instID1 < totInstances-1; instID1++) {
-            out = new Formatter(new StringBuilder(), Locale.US);
-            for (int tabs = 0; tabs < instID1; tabs++) out.format("%-15s", "");
-            double[] topicDist1 = model.getTopicProbabilities(instID1);
-            for (int instID2 = instID1+1; instID2 < totInstances; instID2++) {
-                double[] topicDist2 = model.getTopicProbabilities(instID2);
-                sims[instID1][instID2] = Maths.klDivergence(topicDist1, topicDist2);
-                out.format("%-15s", String.format("%.3f", sims[instID1][instID2] ));
+    /*
+     * As above, from topic distributions we already have (one row of numTopics per name)
+     */
+    public static void findSimilarities(double[] topics, int numTopics, List<String> names, SimilarityEngine.Measure measure, boolean print, SimilarityMatrix sims) {
+
+        long start = System.nanoTime();
+        SimilarityEngine engine = new SimilarityEngine(measure);
+        engine.compute(topics, names.size(), numTopics, sims);
+        engine.shutdown();
+        Metrics.time("similarity", start);
+
+        if (print) {
+            int totInstances = sims.size();
+            System.out.println("\nFinding document similarities");
+            // First print matrix header
+            Formatter out = new Formatter(new StringBuilder(), Locale.US);
+            for (int instID = 1; instID < totInstances; instID++) {
+                out.format("%-15s", names.get(instID));
+            }
+            System.out.printf("%-15s %s%n", "", out);
+            for (int instID1 = 0; instID1 < totInstances-1; instID1++) {
+                out = new Formatter(new StringBuilder(), Locale.US);
+                for (int tabs = 0; tabs < instID1; tabs++) out.format("%-15s", "");
+                for (int instID2 = instID1+1; instID2 < totInstances; instID2++) {
+                    out.format("%-15s", String.format("%.3f", sims.get(instID1, instID2)));
+                }
+                System.out.printf("%-15s %s%n", names.get(instID1), out);
             }
-            System.out.printf("%-15s %s%n", model.getData().get(instID1).instance.getName(), out);
         }
-
-        return sims;
     }
 
     private static void buildPipe() {
-        ArrayList pipeList = new ArrayList();
+        ArrayList<Pipe> pipeList = buildTokenPipes();
+
+        // Rather than storing tokens as strings, convert
+        //  them to integers by looking them up in an alphabet.
+        pipeList.add(new TokenSequence2FeatureSequence());
+
+        // Do the same thing for the "target" field:
+        //  convert a class label string to a Label object,
+        //  which has an index in a Label alphabet.
+        //pipeList.add(new Target2Label());
+
+        // Now convert the sequence of features to a sparse vector,
+        //  mapping feature IDs to counts.
+        // THERE'S A BUG WITH THIS - IGNORE FOR NOW
+        //pipeList.add(new FeatureSequence2FeatureVector());
+
+        // Print out the features and the label
+        //pipeList.add(new PrintInputAndTarget());
+
+        pipe = new SerialPipes(pipeList);
+    }
+
+    /* The pipes that turn text into a sequence of tokens, shared by getPipe() and getTokenPipe() */
+    private static ArrayList<Pipe> buildTokenPipes() {
+        ArrayList<Pipe> pipeList = new ArrayList<Pipe>();
 
         // If reading from files
         // pipeList.add(new Input2CharSequence("UTF-8"));
@@ -153,7 +327,7 @@ public final class MalletUtil {
         //    "[\\p{L}\\p{N}_]+|[\\p{P}]+"   (a group of only letters and numbers OR
         //                                    a group of only punctuation marks)
         //Pattern tokenPattern = Pattern.compile("[\\p{L}\\p{N}_]+");\b[A-Za-z]{3}[A-Za-z]*\b
-        Pattern tokenPattern = Pattern.compile("\\b[A-Za-z]{3}[A-Za-z]*\\b");
+        Pattern tokenPattern = Pattern.compile(TOKEN_REGEX);
 
         // Tokenize raw strings
         pipeList.add(new CharSequence2TokenSequence(tokenPattern));
@@ -165,24 +339,7 @@ public final class MalletUtil {
         //  options: [case sensitive] [mark deletions]
         pipeList.add(new TokenSequenceRemoveStopwords(false, false));
 
-        // Rather than storing tokens as strings, convert
-        //  them to integers by looking them up in an alphabet.
-        pipeList.add(new TokenSequence2FeatureSequence());
-
-        // Do the same thing for the "target" field:
-        //  convert a class label string to a Label object,
-        //  which has an index in a Label alphabet.
-        //pipeList.add(new Target2Label());
-
-        // Now convert the sequence of features to a sparse vector,
-        //  mapping feature IDs to counts.
-        // THERE'S A BUG WITH THIS - IGNORE FOR NOW
-        //pipeList.add(new FeatureSequence2FeatureVector());
-
-        // Print out the features and the label
-        //pipeList.add(new PrintInputAndTarget());
-
-        pipe = new SerialPipes(pipeList);
+        return pipeList;
     }
 
 }
\ No newline at end of file
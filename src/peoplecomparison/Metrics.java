@@ -0,0 +1,326 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Timers, counters and gauges for one run, so we can tell where a slow run spent its time.
+ *
+ * Every stage records into the same registry: timers for fetch, clean, cache, tokenize, build, each burst of LDA
+ * iterations, similarity, layout and export, counters for API calls and cache hits and misses, and gauges for things
+ * like the number of tokens and the size of the alphabet. A background thread samples the heap and how much each
+ * thread has allocated, for the high-water mark and allocation rate. When the run ends, even if it gives up part way,
+ * everything is written out as JSON and in Prometheus' text format (for the node exporter's textfile collector).
+ *
+ * This is also where the console verbosity lives, so per-person and per-edge lines can be turned off on large runs.
+ */
+public class Metrics {
+
+    // Only summaries and problems
+    public static final int QUIET = 0;
+    // Also a line per person and per topic
+    public static final int NORMAL = 1;
+    // Also a line per document, per edge and the full similarity matrix
+    public static final int DETAILED = 2;
+
+    private static final String PREFIX = "peoplecomparison_";
+    // How often to sample the heap and thread allocations
+    private static final long SAMPLE_MILLIS = 100;
+
+    /* How many times something was timed, and how long it took in total and at most */
+    private static class Timer {
+        long count;
+        long totalNanos;
+        long maxNanos;
+    }
+
+    private static volatile int verbosity = NORMAL;
+    private static final long startMillis = System.currentTimeMillis();
+    private static final long startNanos = System.nanoTime();
+    private static final Map<String, Timer> timers = new TreeMap<String, Timer>();
+    private static final Map<String, AtomicLong> counters = new TreeMap<String, AtomicLong>();
+    private static final Map<String, Double> gauges = new TreeMap<String, Double>();
+
+    // Filled in by the sampler
+    private static long heapPeakBytes = 0;
+    private static long allocatedBytes = 0;
+    private static final Map<Long, Long> allocatedByThread = new HashMap<Long, Long>();
+    private static Thread sampler;
+
+    private Metrics() {
+    }
+
+    public static void setVerbosity(int level) {
+        verbosity = level;
+    }
+
+    /* Whether lines meant for this verbosity level should be printed */
+    public static boolean isVerbose(int level) {
+        return verbosity >= level;
+    }
+
+    /**
+     * Records the time since start (from System.nanoTime()) against a timer
+     */
+    public static void time(String name, long start) {
+        record(name, System.nanoTime() - start, 1);
+    }
+
+    /**
+     * Records count timings at once which took nanos altogether, e.g. a burst of sampler iterations. They're taken to
+     * have been equally long, so the timer's max is the longest average rather than the longest one
+     */
+    public static void record(String name, long nanos, long count) {
+        if (count <= 0) return;
+        synchronized (timers) {
+            Timer timer = timers.get(name);
+            if (timer == null) {
+                timer = new Timer();
+                timers.put(name, timer);
+            }
+            timer.count += count;
+            timer.totalNanos += nanos;
+            timer.maxNanos = Math.max(timer.maxNanos, nanos / count);
+        }
+    }
+
+    public static void count(String name) {
+        count(name, 1);
+    }
+
+    public static void count(String name, long amount) {
+        AtomicLong counter;
+        synchronized (counters) {
+            counter = counters.get(name);
+            if (counter == null) {
+                counter = new AtomicLong();
+                counters.put(name, counter);
+            }
+        }
+        counter.addAndGet(amount);
+    }
+
+    public static void gauge(String name, double value) {
+        synchronized (gauges) {
+            gauges.put(name, value);
+        }
+    }
+
+    public static long getCount(String name) {
+        synchronized (counters) {
+            AtomicLong counter = counters.get(name);
+            return (counter == null) ? 0 : counter.get();
+        }
+    }
+
+    /**
+     * Starts sampling the heap and thread allocations in the background. Stops by itself when the program does
+     */
+    public static synchronized void startSampling() {
+        if (sampler != null) return;
+        sampler = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        sample();
+                        Thread.sleep(SAMPLE_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "metrics-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Writes everything out as write() does when the program exits, however it exits (System.exit included)
+     */
+    public static void writeOnExit(final File json, final File prometheus) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    write(json, prometheus);
+                } catch (IOException e) {
+                    System.out.println("Couldn't write metrics to " + json + " and " + prometheus);
+                    e.printStackTrace();
+                }
+            }
+        }, "metrics-writer"));
+    }
+
+    /**
+     * Writes everything recorded so far as JSON, and in Prometheus' text format, replacing each file only once it's complete
+     */
+    public static void write(File json, File prometheus) throws IOException {
+        sample();
+        writeAtomically(json, toJson());
+        writeAtomically(prometheus, toPrometheus());
+    }
+
+    /**
+     * How much of the heap is in use once the garbage collector has cleared out everything it can, for measuring what
+     * something really takes up. Slow, as it collects until a few collections in a row have stopped freeing anything
+     * (one collection doesn't always clear everything that has just become garbage)
+     */
+    public static long getSettledHeapBytes() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        int unchanged = 0;
+        for (int i = 0; i < 20 && unchanged < 3; i++) {
+            System.gc();
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now < used) {
+                used = now;
+                unchanged = 0;
+            } else {
+                unchanged++;
+            }
+        }
+        return used;
+    }
+
+    /* Takes a sample of the heap and of how much each live thread has allocated since we last looked */
+    private static void sample() {
+        // The whole heap at one moment, so the peak is one we really reached (if only to within a sample of it, as a spike
+        // between samples can be missed). The pools' own peaks can't be added up, as they needn't have peaked together
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = null;
+        // Only HotSpot (and its relatives) can tell us what each thread has allocated
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) allocated = hotspot.getThreadAllocatedBytes(ids);
+        }
+        synchronized (allocatedByThread) {
+            heapPeakBytes = Math.max(heapPeakBytes, heapUsed);
+            if (allocated == null) return;
+            // Threads that finished since the last sample take what they allocated after it with them, so this is a slight underestimate
+            Map<Long, Long> live = new HashMap<Long, Long>();
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] < 0) continue;
+                Long previous = allocatedByThread.get(ids[i]);
+                allocatedBytes += allocated[i] - ((previous == null) ? 0 : previous);
+                live.put(ids[i], allocated[i]);
+            }
+            allocatedByThread.clear();
+            allocatedByThread.putAll(live);
+        }
+    }
+
+    private static String toJson() {
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder out = new StringBuilder();
+        DateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US);
+        out.append("{\n");
+        out.append("  \"started\": \"").append(iso.format(new Date(startMillis))).append("\",\n");
+        out.append("  \"elapsed_seconds\": ").append(number(elapsed)).append(",\n");
+        out.append("  \"timers\": {");
+        synchronized (timers) {
+            String separator = "\n";
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                Timer timer = entry.getValue();
+                out.append(separator).append("    \"").append(entry.getKey()).append("\": {\"count\": ").append(timer.count)
+                        .append(", \"total_seconds\": ").append(number(timer.totalNanos / 1e9))
+                        .append(", \"mean_seconds\": ").append(number(timer.totalNanos / 1e9 / timer.count))
+                        .append(", \"max_seconds\": ").append(number(timer.maxNanos / 1e9)).append("}");
+                separator = ",\n";
+            }
+        }
+        out.append("\n  },\n  \"counters\": {");
+        synchronized (counters) {
+            String separator = "\n";
+            for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+                out.append(separator).append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue().get());
+                separator = ",\n";
+            }
+        }
+        out.append("\n  },\n  \"gauges\": {");
+        synchronized (gauges) {
+            String separator = "\n";
+            for (Map.Entry<String, Double> entry : gauges.entrySet()) {
+                out.append(separator).append("    \"").append(entry.getKey()).append("\": ").append(number(entry.getValue()));
+                separator = ",\n";
+            }
+        }
+        out.append("\n  },\n  \"memory\": {\n");
+        synchronized (allocatedByThread) {
+            out.append("    \"heap_peak_bytes\": ").append(heapPeakBytes).append(",\n");
+            out.append("    \"allocated_bytes\": ").append(allocatedBytes).append(",\n");
+            out.append("    \"allocation_rate_bytes_per_second\": ").append(number(allocatedBytes / elapsed)).append("\n");
+        }
+        out.append("  }\n}\n");
+        return out.toString();
+    }
+
+    private static String toPrometheus() {
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder out = new StringBuilder();
+        synchronized (timers) {
+            header(out, "stage_seconds_total", "counter", "Time spent in each stage");
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                out.append(PREFIX).append("stage_seconds_total{stage=\"").append(entry.getKey()).append("\"} ").append(number(entry.getValue().totalNanos / 1e9)).append('\n');
+            }
+            header(out, "stage_runs_total", "counter", "How many times each stage ran");
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                out.append(PREFIX).append("stage_runs_total{stage=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().count).append('\n');
+            }
+            header(out, "stage_max_seconds", "gauge", "Longest single run of each stage");
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                out.append(PREFIX).append("stage_max_seconds{stage=\"").append(entry.getKey()).append("\"} ").append(number(entry.getValue().maxNanos / 1e9)).append('\n');
+            }
+        }
+        synchronized (counters) {
+            for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+                header(out, entry.getKey() + "_total", "counter", null);
+                out.append(PREFIX).append(entry.getKey()).append("_total ").append(entry.getValue().get()).append('\n');
+            }
+        }
+        synchronized (gauges) {
+            for (Map.Entry<String, Double> entry : gauges.entrySet()) {
+                header(out, entry.getKey(), "gauge", null);
+                out.append(PREFIX).append(entry.getKey()).append(' ').append(number(entry.getValue())).append('\n');
+            }
+        }
+        synchronized (allocatedByThread) {
+            header(out, "heap_peak_bytes", "gauge", "Most heap in use at any sample during the run");
+            out.append(PREFIX).append("heap_peak_bytes ").append(heapPeakBytes).append('\n');
+            header(out, "allocated_bytes_total", "counter", "Bytes allocated by all threads");
+            out.append(PREFIX).append("allocated_bytes_total ").append(allocatedBytes).append('\n');
+            header(out, "allocation_rate_bytes_per_second", "gauge", "Bytes allocated per second over the run");
+            out.append(PREFIX).append("allocation_rate_bytes_per_second ").append(number(allocatedBytes / elapsed)).append('\n');
+        }
+        header(out, "run_seconds", "gauge", "How long the run took");
+        out.append(PREFIX).append("run_seconds ").append(number(elapsed)).append('\n');
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        if (help != null) out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return "0";
+        return String.format(Locale.US, "%.6f", value);
+    }
+
+    private static void writeAtomically(File file, String content) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) throw new IOException("Couldn't create " + parent);
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
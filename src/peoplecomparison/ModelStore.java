@@ -0,0 +1,285 @@
+package peoplecomparison;
+
+import cc.mallet.pipe.*;
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Keeps a trained topic model on disk so we don't have to retrain every time someone is added.
+ *
+ * Alongside the model (which carries its own alphabet) we store the pipe it was trained with, when it was trained,
+ * and the content hash of every feed that went into it. People whose feed hasn't changed since then get their
+ * topic distribution straight from the model, and new or changed people are folded in with Mallet's TopicInferencer.
+ * A full retrain is only needed once the model is too old, the pipe has changed, or too much of the corpus is new.
+ * Only the last of those can be done as a warm start from the saved model.
+ */
+public class ModelStore {
+
+    private static final String MODEL_FILE = "model.ser";
+    private static final String PIPE_FILE = "pipe.ser";
+    private static final String INFO_FILE = "model.properties";
+    private static final String TRAINED_FILE = "trained.properties";
+
+    // Gibbs sampling settings for inference
+    private static final int INFERENCE_ITERATIONS = 100;
+    private static final int INFERENCE_THINNING = 10;
+    private static final int INFERENCE_BURN_IN = 10;
+
+    private String directory;
+    private ParallelTopicModel model;
+    private TopicInferencer inferencer;
+    // Which document each trained name is in the model
+    private Map<String, Integer> trainedDocs;
+
+    public ModelStore(String directory) {
+        this.directory = directory;
+    }
+
+    public boolean hasModel() {
+        return new File(directory, MODEL_FILE).exists() && new File(directory, INFO_FILE).exists();
+    }
+
+    /* Why the saved model can't be used as it is (or NONE if it can) */
+    public enum Retrain {NONE, NO_MODEL, AGE, PIPE, DRIFT}
+
+    /**
+     * Whether we need a full retrain and why: there's no model, the last training from scratch was more than maxAgeHours ago,
+     * the pipe has changed, or more than maxDrift of the given feeds (name to content hash) are new or have changed since it was trained.
+     * Only DRIFT can be fixed by warm starting from the saved model; the age is counted from the last cold start so warm starts
+     * can't keep a model going forever.
+     */
+    public Retrain shouldRetrain(Map<String, String> contentHashes, int maxAgeHours, double maxDrift) {
+        if (!hasModel()) {
+            System.out.println("No saved topic model, training a new one");
+            return Retrain.NO_MODEL;
+        }
+        Properties info = loadProperties(INFO_FILE);
+        String coldStartAt = info.getProperty("coldStartAt", info.getProperty("trainedAt", "0"));
+        long ageHours = (System.currentTimeMillis() - Long.parseLong(coldStartAt)) / (60 * 60 * 1000);
+        if (ageHours >= maxAgeHours) {
+            System.out.println("Saved topic model was trained from scratch " + ageHours + " hours ago, retraining");
+            return Retrain.AGE;
+        }
+        if (!MalletUtil.PIPE_SIGNATURE.equals(info.getProperty("pipeSignature"))) {
+            System.out.println("Pipe has changed since the topic model was trained, retraining");
+            return Retrain.PIPE;
+        }
+        double drift = getDrift(contentHashes);
+        if (drift > maxDrift) {
+            System.out.printf("%.0f%% of feeds are new or changed since the topic model was trained, retraining%n", drift * 100);
+            return Retrain.DRIFT;
+        }
+        System.out.printf("Using saved topic model (%d hours since trained from scratch, %.0f%% of feeds new or changed)%n", ageHours, drift * 100);
+        return Retrain.NONE;
+    }
+
+    /**
+     * The fraction of the given feeds (name to content hash) that weren't in the trained model as they are now
+     */
+    public double getDrift(Map<String, String> contentHashes) {
+        if (contentHashes.isEmpty()) return 0;
+        Properties trained = loadProperties(TRAINED_FILE);
+        int changed = 0;
+        for (Map.Entry<String, String> entry : contentHashes.entrySet()) {
+            if (!entry.getValue().equals(trained.getProperty(entry.getKey()))) changed++;
+        }
+        return (double) changed / contentHashes.size();
+    }
+
+    /**
+     * Whether the saved model can seed a warm start: it exists, was trained with the same pipe, and no more than maxDrift of the given feeds
+     * are new or have changed since
+     */
+    public boolean canWarmStart(Map<String, String> contentHashes, double maxDrift) {
+        return hasModel() && MalletUtil.PIPE_SIGNATURE.equals(loadProperties(INFO_FILE).getProperty("pipeSignature")) && getDrift(contentHashes) <= maxDrift;
+    }
+
+    /**
+     * The names of the given feeds (name to content hash) that are in the trained model as they are now
+     */
+    public Set<String> getUnchanged(Map<String, String> contentHashes) {
+        Properties trained = loadProperties(TRAINED_FILE);
+        Set<String> unchanged = new HashSet<String>();
+        for (Map.Entry<String, String> entry : contentHashes.entrySet()) {
+            if (entry.getValue().equals(trained.getProperty(entry.getKey()))) unchanged.add(entry.getKey());
+        }
+        return unchanged;
+    }
+
+    /**
+     * How long the last training run from scratch took (in milliseconds) and the log likelihood per token it reached,
+     * for comparing warm starts against. Returns null if we don't know.
+     */
+    public double[] getColdStartCost() {
+        Properties info = loadProperties(INFO_FILE);
+        if (info.getProperty("coldStartMillis") == null) return null;
+        return new double[]{Double.parseDouble(info.getProperty("coldStartMillis")), Double.parseDouble(info.getProperty("coldStartLogLikelihoodPerToken"))};
+    }
+
+    /**
+     * Saves a newly trained model, the pipe its instances came through, and the content hashes of the feeds it was trained on,
+     * along with how long training took and whether it was warm started from the previous model
+     */
+    public void save(ParallelTopicModel model, Pipe pipe, Map<String, String> contentHashes, long trainMillis, boolean warmStart) {
+        double[] coldStartCost = warmStart ? getColdStartCost() : null;
+        Properties previousInfo = loadProperties(INFO_FILE);
+        String coldStartAt = warmStart ? previousInfo.getProperty("coldStartAt", previousInfo.getProperty("trainedAt")) : null;
+        File dir = new File(directory);
+        if (!dir.exists()) dir.mkdirs();
+        try {
+            // Without the info the store has no model, so if we're interrupted from here on the old properties can never
+            // be paired with a new model (and each file is written to the side and moved into place, so none is half written)
+            Files.deleteIfExists(new File(directory, INFO_FILE).toPath());
+            File modelTmp = tempFile(MODEL_FILE);
+            model.write(modelTmp);
+            moveIntoPlace(modelTmp, MODEL_FILE);
+            File pipeTmp = tempFile(PIPE_FILE);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(pipeTmp)));
+            out.writeObject(pipe);
+            out.close();
+            moveIntoPlace(pipeTmp, PIPE_FILE);
+
+            Properties trained = new Properties();
+            trained.putAll(contentHashes);
+            storeProperties(trained, TRAINED_FILE);
+            // Written last, so a half saved model is never used
+            Properties info = new Properties();
+            String trainedAt = Long.toString(System.currentTimeMillis());
+            info.setProperty("trainedAt", trainedAt);
+            // A warm start carries on the model it started from, so it keeps that model's cold start time
+            info.setProperty("coldStartAt", coldStartAt != null ? coldStartAt : trainedAt);
+            info.setProperty("pipeSignature", MalletUtil.PIPE_SIGNATURE);
+            info.setProperty("numTopics", Integer.toString(model.getNumTopics()));
+            info.setProperty("numDocs", Integer.toString(model.getData().size()));
+            info.setProperty("trainMillis", Long.toString(trainMillis));
+            info.setProperty("warmStart", Boolean.toString(warmStart));
+            // Remember what the last cold start cost, so later warm starts can be compared with it
+            double logLikelihoodPerToken = model.modelLogLikelihood() / model.totalTokens;
+            if (!warmStart) coldStartCost = new double[]{trainMillis, logLikelihoodPerToken};
+            if (coldStartCost != null) {
+                info.setProperty("coldStartMillis", Long.toString((long) coldStartCost[0]));
+                info.setProperty("coldStartLogLikelihoodPerToken", Double.toString(coldStartCost[1]));
+            }
+            storeProperties(info, INFO_FILE);
+        } catch (IOException e) {
+            System.out.println("Couldn't save topic model");
+            e.printStackTrace();
+        }
+        setModel(model);
+    }
+
+    /**
+     * Loads the saved model, returning null if it can't be read
+     */
+    public ParallelTopicModel load() {
+        if (model != null) return model;
+        try {
+            setModel(ParallelTopicModel.read(new File(directory, MODEL_FILE)));
+        } catch (Exception e) {
+            System.out.println("Couldn't read saved topic model");
+            e.printStackTrace();
+            return null;
+        }
+        return model;
+    }
+
+    /* Loads the pipe the saved model was trained with */
+    public Pipe loadPipe() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(new File(directory, PIPE_FILE))));
+        try {
+            return (Pipe) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the topic distribution of every instance as one row-major n x k array. Unchanged feeds
+     * are read from the model and anything else is inferred.
+     */
+    public double[] getTopicMatrix(InstanceList instances, Map<String, String> contentHashes) {
+        Properties trained = loadProperties(TRAINED_FILE);
+        int numTopics = model.getNumTopics();
+        double[] topics = new double[instances.size() * numTopics];
+        int inferred = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < instances.size(); i++) {
+            Instance instance = instances.get(i);
+            String name = (String) instance.getName();
+            Integer doc = trainedDocs.get(name);
+            boolean unchanged = doc != null && contentHashes.containsKey(name) && contentHashes.get(name).equals(trained.getProperty(name));
+            double[] distribution = unchanged ? model.getTopicProbabilities(doc) : infer(instance);
+            if (!unchanged) inferred++;
+            System.arraycopy(distribution, 0, topics, i * numTopics, numTopics);
+        }
+        System.out.println("Inferred topics for " + inferred + " new or changed feeds in " + (System.currentTimeMillis() - start) + "ms");
+        return topics;
+    }
+
+    /**
+     * Works out the topic distribution of an instance against the saved model. Words the model has never seen are ignored.
+     * The instance can hold a FeatureSequence or, straight from a tokenizing pipe that has no alphabet, a TokenSequence.
+     */
+    public double[] infer(Instance instance) {
+        // The instance may have come through a different pipe, so map its words onto the model's alphabet
+        List<Object> words = new ArrayList<Object>();
+        if (instance.getData() instanceof TokenSequence) {
+            for (Token token : (TokenSequence) instance.getData()) words.add(token.getText());
+        } else {
+            FeatureSequence tokens = (FeatureSequence) instance.getData();
+            for (int i = 0; i < tokens.getLength(); i++) words.add(tokens.getObjectAtPosition(i));
+        }
+        Alphabet modelAlphabet = model.getAlphabet();
+        FeatureSequence mapped = new FeatureSequence(modelAlphabet, words.size());
+        for (Object word : words) {
+            int index = modelAlphabet.lookupIndex(word, false);
+            if (index >= 0 && index < model.numTypes) mapped.add(index);
+        }
+        return inferencer.getSampledDistribution(new Instance(mapped, null, instance.getName(), null), INFERENCE_ITERATIONS, INFERENCE_THINNING, INFERENCE_BURN_IN);
+    }
+
+    private void setModel(ParallelTopicModel model) {
+        this.model = model;
+        this.inferencer = model.getInferencer();
+        this.inferencer.setRandomSeed(42);
+        this.trainedDocs = new HashMap<String, Integer>();
+        for (int doc = 0; doc < model.getData().size(); doc++) {
+            trainedDocs.put((String) model.getData().get(doc).instance.getName(), doc);
+        }
+    }
+
+    private Properties loadProperties(String fileName) {
+        Properties properties = new Properties();
+        File file = new File(directory, fileName);
+        if (file.exists()) {
+            try {
+                Reader reader = new FileReader(file);
+                properties.load(reader);
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return properties;
+    }
+
+    private void storeProperties(Properties properties, String fileName) throws IOException {
+        File tmp = tempFile(fileName);
+        Writer writer = new FileWriter(tmp);
+        properties.store(writer, null);
+        writer.close();
+        moveIntoPlace(tmp, fileName);
+    }
+
+    private File tempFile(String fileName) {
+        return new File(directory, fileName + ".tmp");
+    }
+
+    private void moveIntoPlace(File tmp, String fileName) throws IOException {
+        Files.move(tmp.toPath(), new File(directory, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
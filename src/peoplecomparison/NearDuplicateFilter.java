@@ -0,0 +1,150 @@
+package peoplecomparison;
+
+import java.util.*;
+
+/**
+ * Spots statuses that are the same as, or nearly the same as, one we've already seen, from the same person or anyone else.
+ *
+ * Retweets and syndicated headlines turn up many times over, which adds tokens for the sampler to get through and makes
+ * people look alike just because they passed the same text around. Each status's words (as they come out of the pipe)
+ * are broken into pairs (shingles) and given a MinHash signature, whose bands are hashed into buckets (locality
+ * sensitive hashing). Statuses only get compared if they share a bucket, so each one costs about the same however many
+ * we've seen. A candidate counts as a duplicate if the signatures estimate at least the threshold Jaccard similarity
+ * between their shingles.
+ *
+ * Signatures can be worked out on any thread. The first copy of a status passed to isDuplicate is kept and later copies
+ * are dropped, so which copy survives is up to the order the caller checks them in.
+ */
+public class NearDuplicateFilter {
+
+    // Statuses with fewer shingles (pairs of words) than this are too short to tell apart from a chance match, so they're always kept
+    private static final int MIN_SHINGLES = 3;
+
+    private final int bands;
+    private final int rows;
+    private final double threshold;
+    // Multipliers and offsets for each of the bands * rows hash functions
+    private final long[] multipliers;
+    private final long[] offsets;
+
+    // One bucket map per band, from the band's hash to a status we've kept with it
+    private final List<Map<Long, Integer>> buckets = new ArrayList<Map<Long, Integer>>();
+    private final List<int[]> signatures = new ArrayList<int[]>();
+
+    private long statusesSeen = 0;
+    private long duplicates = 0;
+    private long wordsSeen = 0;
+    private long wordsRemoved = 0;
+
+    /**
+     * 15 bands of 4 rows, so pairs above about 0.5 similarity are likely to share a bucket, confirmed at 0.6. A retweet with
+     * a word changed and a couple added comes out at about 0.65 on a typical status.
+     */
+    public NearDuplicateFilter() {
+        this(15, 4, 0.6, 42);
+    }
+
+    public NearDuplicateFilter(int bands, int rows, double threshold, int seed) {
+        this.bands = bands;
+        this.rows = rows;
+        this.threshold = threshold;
+        Random random = new Random(seed);
+        multipliers = new long[bands * rows];
+        offsets = new long[bands * rows];
+        for (int i = 0; i < multipliers.length; i++) {
+            multipliers[i] = random.nextLong() | 1;
+            offsets[i] = random.nextLong();
+        }
+        for (int band = 0; band < bands; band++) buckets.add(new HashMap<Long, Integer>());
+    }
+
+    /**
+     * The MinHash signature of a status, given as its words, or null if it's too short to tell apart from a chance match
+     */
+    public int[] signature(String[] words) {
+        if (words.length - 1 < MIN_SHINGLES) return null;
+        int[] signature = new int[multipliers.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        long previous = hash(words[0]);
+        for (int w = 1; w < words.length; w++) {
+            long word = hash(words[w]);
+            long shingle = previous * 0x9e3779b97f4a7c15L + word;
+            previous = word;
+            for (int i = 0; i < multipliers.length; i++) {
+                int hash = (int) ((shingle * multipliers[i] + offsets[i]) >>> 33);
+                if (hash < signature[i]) signature[i] = hash;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Whether a status (with the given signature and number of words) is a near duplicate of one already checked. If it
+     * isn't, it's remembered for next time. Statuses too short to have a signature are always kept.
+     */
+    public synchronized boolean isDuplicate(int[] signature, int words) {
+        statusesSeen++;
+        wordsSeen += words;
+        if (signature == null) return false;
+        long[] bandHashes = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long hash = 17;
+            for (int row = band * rows; row < (band + 1) * rows; row++) hash = hash * 31 + signature[row];
+            bandHashes[band] = hash;
+        }
+        for (int band = 0; band < bands; band++) {
+            Integer candidate = buckets.get(band).get(bandHashes[band]);
+            if (candidate != null && similarity(signature, signatures.get(candidate)) >= threshold) {
+                duplicates++;
+                wordsRemoved += words;
+                return true;
+            }
+        }
+        int id = signatures.size();
+        signatures.add(signature);
+        for (int band = 0; band < bands; band++) {
+            if (!buckets.get(band).containsKey(bandHashes[band])) buckets.get(band).put(bandHashes[band], id);
+        }
+        return false;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getWordsRemoved() {
+        return wordsRemoved;
+    }
+
+    /**
+     * Shows how much was dropped and, given how long the topic model took to train on what was left, about how much sampling that saved
+     */
+    public synchronized void printReport(long trainMillis) {
+        if (statusesSeen == 0) return;
+        double fraction = (wordsSeen == 0) ? 0 : (double) wordsRemoved / wordsSeen;
+        System.out.printf(Locale.US, "Dropped %d of %d statuses as near duplicates, %d words (%.1f%%)%n", duplicates, statusesSeen, wordsRemoved, fraction * 100);
+        if (trainMillis > 0 && fraction < 1) {
+            // Sampling time goes up in line with the number of tokens
+            System.out.printf(Locale.US, "That saved about %.1fs of topic model sampling%n", trainMillis * fraction / (1 - fraction) / 1000.0);
+        }
+    }
+
+    /* FNV-1a over the word's characters */
+    private static long hash(String word) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < word.length(); i++) {
+            hash ^= word.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /* The fraction of hash functions on which two signatures agree, which estimates the Jaccard similarity of their shingles */
+    private static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) same++;
+        }
+        return (double) same / a.length;
+    }
+}
@@ -0,0 +1,352 @@
+package peoplecomparison;
+
+import cc.mallet.pipe.*;
+import cc.mallet.types.*;
+
+import java.util.*;
+
+/**
+ * A topic model that learns from statuses as they arrive, rather than from every feed at once.
+ *
+ * This is online variational Bayes for LDA (Hoffman, Blei and Bach, "Online Learning for Latent Dirichlet Allocation", 2010).
+ * Statuses are queued up into mini-batches. For each one we fit its topic proportions against the current topics, and then
+ * blend what the batch says about the topics into them with a step size that shrinks as we see more batches. Nothing
+ * about a status is kept once its batch is done, apart from its contribution to the poster's topic vector.
+ *
+ * Memory doesn't grow with the stream: words are hashed into a fixed number of buckets rather than looked up in an
+ * alphabet that would keep growing, so the topics are a fixed numTopics x numBuckets array. The only thing that grows
+ * is one numTopics vector per person, which can be read at any time with getTopicDistribution().
+ */
+public class OnlineTopicModel {
+
+    // Per status fitting: stop once the topic proportions move by less than this on average, or after this many rounds
+    private static final double FIT_TOLERANCE = 0.001;
+    private static final int MAX_FIT_ITERATIONS = 100;
+
+    private final int numTopics;
+    private final int numBuckets;
+    // Dirichlet priors on each status's topic proportions and each topic's word distribution
+    private final double alpha;
+    private final double eta;
+    // How many statuses we pretend the stream holds, which sets how much weight one batch carries
+    private final double corpusSize;
+    private final int batchSize;
+    // Step size for the nth batch is (tau0 + n)^-kappa: tau0 slows down the early batches, kappa sets how fast we forget
+    private final double tau0;
+    private final double kappa;
+
+    // The topics' variational parameters are eta + scale * topicWords[topic * numBuckets + bucket]. Keeping the scale
+    // separate means the step-size decay costs one multiply rather than a pass over the whole array
+    private final double[] topicWords;
+    private final double[] topicTotals;
+    private double scale = 1;
+    // The last word seen in each bucket, so we can show topics as words
+    private final String[] bucketWords;
+
+    private final Pipe tokenPipe = MalletUtil.getTokenPipe();
+    private final Random random;
+    private final List<QueuedStatus> queue = new ArrayList<QueuedStatus>();
+    // Expected number of words each person has written about each topic
+    private final Map<String, double[]> people = new HashMap<String, double[]>();
+    private long batches = 0;
+    private long statuses = 0;
+    private long tokens = 0;
+
+    /* A queued status: who posted it, and its words as bucket/count pairs */
+    private static class QueuedStatus {
+        final String person;
+        final int[] buckets;
+        final int[] counts;
+
+        QueuedStatus(String person, int[] buckets, int[] counts) {
+            this.person = person;
+            this.buckets = buckets;
+            this.counts = counts;
+        }
+    }
+
+    public OnlineTopicModel(int numTopics) {
+        this(numTopics, 1 << 16, 1.0 / numTopics, 0.01, 100000, 256, 64, 0.7, 42);
+    }
+
+    /**
+     * @param numTopics  how many topics to learn
+     * @param numBuckets how many buckets to hash words into (more means fewer unrelated words sharing a bucket)
+     * @param alpha      prior on each status's topic proportions
+     * @param eta        prior on each topic's word distribution
+     * @param corpusSize how many statuses the stream is taken to hold
+     * @param batchSize  statuses per update
+     * @param tau0       slows down the early updates
+     * @param kappa      how quickly old batches are forgotten, between 0.5 and 1
+     * @param seed       for the random starting topics
+     */
+    public OnlineTopicModel(int numTopics, int numBuckets, double alpha, double eta, double corpusSize, int batchSize, double tau0, double kappa, int seed) {
+        this.numTopics = numTopics;
+        this.numBuckets = numBuckets;
+        this.alpha = alpha;
+        this.eta = eta;
+        this.corpusSize = corpusSize;
+        this.batchSize = batchSize;
+        this.tau0 = tau0;
+        this.kappa = kappa;
+        this.random = new Random(seed);
+        this.bucketWords = new String[numBuckets];
+
+        // Start every topic slightly different, or they'd all learn the same thing
+        topicWords = new double[numTopics * numBuckets];
+        topicTotals = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                double value = 0.9 + 0.2 * random.nextDouble();
+                topicWords[topic * numBuckets + bucket] = value;
+                topicTotals[topic] += value;
+            }
+        }
+    }
+
+    /**
+     * Queues up a status that has already been cleaned, updating the topics once a full batch is waiting
+     */
+    public synchronized void addStatus(String person, CharSequence text) {
+        TokenSequence words = (TokenSequence) tokenPipe.instanceFrom(new Instance(text, null, null, null)).getData();
+        if (words.size() == 0) return;
+
+        Map<Integer, Integer> bucketCounts = new HashMap<Integer, Integer>();
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i).getText();
+            int bucket = (word.hashCode() & 0x7fffffff) % numBuckets;
+            bucketWords[bucket] = word;
+            Integer count = bucketCounts.get(bucket);
+            bucketCounts.put(bucket, (count == null) ? 1 : count + 1);
+        }
+        int[] buckets = new int[bucketCounts.size()];
+        int[] counts = new int[bucketCounts.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : bucketCounts.entrySet()) {
+            buckets[i] = entry.getKey();
+            counts[i++] = entry.getValue();
+        }
+        queue.add(new QueuedStatus(person, buckets, counts));
+        tokens += words.size();
+        if (queue.size() >= batchSize) update();
+    }
+
+    /**
+     * Cleans and queues up statuses straight from Twitter
+     */
+    public void addStatuses(String person, List<twitter4j.Status> statuses) {
+        for (twitter4j.Status status : statuses) addStatus(person, TwitterUtil.cleanTweet(status.getText()));
+    }
+
+    /**
+     * Updates the topics with whatever is queued, even if it's less than a full batch
+     */
+    public synchronized void flush() {
+        if (!queue.isEmpty()) update();
+    }
+
+    /**
+     * Feeds the cached feeds in as if they were a live stream, taking one status (a line of the cached feed) from each
+     * feed in turn. Only openFeeds feeds are held in memory at once.
+     */
+    public void replay(Cache cache, List<String> names, int openFeeds) {
+        Iterator<String> waiting = names.iterator();
+        List<String> open = new ArrayList<String>();
+        List<CharSequence> feeds = new ArrayList<CharSequence>();
+        List<Integer> positions = new ArrayList<Integer>();
+        long start = System.currentTimeMillis();
+        while (true) {
+            while (open.size() < openFeeds && waiting.hasNext()) {
+                String name = waiting.next();
+                if (!cache.hasTwitterFeed(name)) continue;
+                open.add(name);
+                feeds.add(cache.getTwitterFeedView(new Person(name)));
+                positions.add(0);
+            }
+            if (open.isEmpty()) break;
+            for (int i = 0; i < open.size(); i++) {
+                CharSequence feed = feeds.get(i);
+                int from = positions.get(i);
+                int to = from;
+                while (to < feed.length() && feed.charAt(to) != '\n') to++;
+                if (to > from) addStatus(open.get(i), feed.subSequence(from, to));
+                if (to + 1 >= feed.length()) {
+                    open.remove(i);
+                    feeds.remove(i);
+                    positions.remove(i);
+                    i--;
+                } else {
+                    positions.set(i, to + 1);
+                }
+            }
+        }
+        flush();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.printf(Locale.US, "Replayed %d statuses (%d tokens) in %d batches, %.0f statuses/s%n", statuses, tokens, batches, statuses * 1000.0 / elapsed);
+    }
+
+    /**
+     * The topic distribution of everything we've seen from this person so far, or null if we've seen nothing
+     */
+    public synchronized double[] getTopicDistribution(String person) {
+        double[] counts = people.get(person);
+        if (counts == null) return null;
+        double total = 0;
+        for (double count : counts) total += count + alpha;
+        double[] distribution = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) distribution[topic] = (counts[topic] + alpha) / total;
+        return distribution;
+    }
+
+    public synchronized Set<String> getPeople() {
+        return new TreeSet<String>(people.keySet());
+    }
+
+    public int getNumTopics() {
+        return numTopics;
+    }
+
+    /**
+     * The most likely words in a topic, as far as we can tell them apart from others sharing their bucket
+     */
+    public synchronized List<String> getTopWords(int topic, int numWords) {
+        Integer[] buckets = new Integer[numBuckets];
+        for (int bucket = 0; bucket < numBuckets; bucket++) buckets[bucket] = bucket;
+        final int offset = topic * numBuckets;
+        Arrays.sort(buckets, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(topicWords[offset + b], topicWords[offset + a]);
+            }
+        });
+        List<String> words = new ArrayList<String>();
+        for (int i = 0; i < numBuckets && words.size() < numWords; i++) {
+            if (bucketWords[buckets[i]] != null) words.add(bucketWords[buckets[i]]);
+        }
+        return words;
+    }
+
+    public synchronized void printTopics(int numWords) {
+        System.out.println("Topic\tTop " + numWords + " Words");
+        for (int topic = 0; topic < numTopics; topic++) {
+            System.out.println(topic + "\t\t" + getTopWords(topic, numWords));
+        }
+    }
+
+    /*
+     * Fits every queued status against the current topics, then moves the topics part of the way towards what the batch suggests
+     */
+    private void update() {
+        double[] logTopicTotals = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            logTopicTotals[topic] = Dirichlet.digamma(numBuckets * eta + scale * topicTotals[topic]);
+        }
+
+        // What this batch says about each topic's words, for just the buckets it uses
+        Map<Integer, double[]> batchWords = new HashMap<Integer, double[]>();
+        for (QueuedStatus status : queue) {
+            int length = status.buckets.length;
+            // exp(E[log beta]) for the status's words
+            double[][] wordWeights = new double[numTopics][length];
+            for (int topic = 0; topic < numTopics; topic++) {
+                for (int j = 0; j < length; j++) {
+                    wordWeights[topic][j] = Math.exp(Dirichlet.digamma(eta + scale * topicWords[topic * numBuckets + status.buckets[j]]) - logTopicTotals[topic]);
+                }
+            }
+
+            double[] gamma = new double[numTopics];
+            double[] topicWeights = new double[numTopics];
+            double[] norms = new double[length];
+            Arrays.fill(gamma, 1);
+            for (int iteration = 0; iteration < MAX_FIT_ITERATIONS; iteration++) {
+                expectedLogProportions(gamma, topicWeights);
+                normalizers(topicWeights, wordWeights, status.counts, norms);
+                double change = 0;
+                for (int topic = 0; topic < numTopics; topic++) {
+                    double expected = 0;
+                    for (int j = 0; j < length; j++) expected += status.counts[j] * wordWeights[topic][j] / norms[j];
+                    double updated = alpha + topicWeights[topic] * expected;
+                    change += Math.abs(updated - gamma[topic]);
+                    gamma[topic] = updated;
+                }
+                if (change / numTopics < FIT_TOLERANCE) break;
+            }
+
+            // Add the status's expected word/topic counts to the batch's, and to its poster's topic vector
+            expectedLogProportions(gamma, topicWeights);
+            normalizers(topicWeights, wordWeights, status.counts, norms);
+            double[] person = people.get(status.person);
+            if (person == null) people.put(status.person, person = new double[numTopics]);
+            for (int j = 0; j < length; j++) {
+                double[] words = batchWords.get(status.buckets[j]);
+                if (words == null) batchWords.put(status.buckets[j], words = new double[numTopics]);
+                for (int topic = 0; topic < numTopics; topic++) {
+                    double count = status.counts[j] * topicWeights[topic] * wordWeights[topic][j] / norms[j];
+                    words[topic] += count;
+                    person[topic] += count;
+                }
+            }
+        }
+
+        // Blend the batch into the topics: lambda = (1 - rho) * lambda + rho * (eta + corpusSize / batch * counts)
+        double rho = Math.pow(tau0 + batches, -kappa);
+        scale *= 1 - rho;
+        double weight = rho * corpusSize / queue.size() / scale;
+        for (Map.Entry<Integer, double[]> entry : batchWords.entrySet()) {
+            int bucket = entry.getKey();
+            double[] counts = entry.getValue();
+            for (int topic = 0; topic < numTopics; topic++) {
+                topicWords[topic * numBuckets + bucket] += weight * counts[topic];
+                topicTotals[topic] += weight * counts[topic];
+            }
+        }
+        // Fold the scale back in before it gets small enough to lose precision
+        if (scale < 1e-100) {
+            for (int i = 0; i < topicWords.length; i++) topicWords[i] *= scale;
+            for (int topic = 0; topic < numTopics; topic++) topicTotals[topic] *= scale;
+            scale = 1;
+        }
+
+        statuses += queue.size();
+        batches++;
+        queue.clear();
+    }
+
+    /* exp(E[log theta]) for a status with the given variational Dirichlet */
+    private static void expectedLogProportions(double[] gamma, double[] topicWeights) {
+        double total = 0;
+        for (double g : gamma) total += g;
+        double digammaTotal = Dirichlet.digamma(total);
+        for (int topic = 0; topic < gamma.length; topic++) topicWeights[topic] = Math.exp(Dirichlet.digamma(gamma[topic]) - digammaTotal);
+    }
+
+    /* The normalizer for each word's topic responsibilities */
+    private static void normalizers(double[] topicWeights, double[][] wordWeights, int[] counts, double[] norms) {
+        for (int j = 0; j < counts.length; j++) {
+            double norm = 1e-100;
+            for (int topic = 0; topic < topicWeights.length; topic++) norm += topicWeights[topic] * wordWeights[topic][j];
+            norms[j] = norm;
+        }
+    }
+
+    /**
+     * Replays a cached tweet directory (./tweets/ unless another is given) through an online model, as if the statuses
+     * were arriving live, then shows the topics and each person's strongest topic
+     */
+    public static void main(String[] args) {
+        String directory = (args.length > 0) ? args[0] : "./tweets/";
+        Cache cache = new Cache(directory);
+        OnlineTopicModel model = new OnlineTopicModel(20);
+        model.replay(cache, cache.getNames(), 8);
+        model.printTopics(8);
+
+        System.out.println("\nStrongest topic by person");
+        for (String person : model.getPeople()) {
+            double[] distribution = model.getTopicDistribution(person);
+            int best = 0;
+            for (int topic = 1; topic < distribution.length; topic++) {
+                if (distribution[topic] > distribution[best]) best = topic;
+            }
+            System.out.printf(Locale.US, "%-15s %d (%.2f)%n", person, best, distribution[best]);
+        }
+    }
+}
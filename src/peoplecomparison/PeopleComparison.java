@@ -15,86 +15,309 @@ import java.util.*;
  */
 public class PeopleComparison {
 
-    // Put your test Twitter handles in this list
-    private static final List<String> screenNames = Arrays.asList("NYTimeskrugman", "thisisafakenameandwontwork", "zerohedge","katyperry","justinbieber","jtimberlake", "TheEllenShow", "Cristiano", "messi10stats", "BillGates", "FCBarcelona", "DalaiLama", "pmarca", "elonmusk", "bhorowitz", "ariannahuff", "marissamayer", "joshuatopolsky", "charlesarthur", "jeffweiner", "rupertmurdoch");
+    // Put your test Twitter handles in this file, one per line
+    private static final String HANDLES_PATH = "./././././handles.txt";
     // Where to cache the tweet txt files
     private static final String TWEET_DIRECTORY = "./././././tweets/";
-    // What to export our final graph as
-    private static final String EXPORT_FORMAT = "pdf";
-    // Where to export our final graph
-    private static final String EXPORT_PATH = "./././././twitter-graph.pdf";
+    // Where to cache the piped feature sequences
+    private static final String FEATURE_DIRECTORY = "./././././tweets/features/";
+    // Where to keep the trained topic model
+    private static final String MODEL_DIRECTORY = "./././././tweets/model/";
+    // What to export our final graph as (GEXF, GRAPHML or NDJSON), written straight from the edges without rendering anything
+    private static final GraphWriter.Format EXPORT_FORMAT = GraphWriter.Format.GEXF;
+    // Where to export our final graph (add .gz to compress it)
+    private static final String EXPORT_PATH = "./././././twitter-graph.gexf";
+    // Also render the graph to a PDF with Gephi. Slow on big graphs, as the whole preview is rendered in memory
+    private static final boolean renderPdf = true;
+    private static final String PDF_PATH = "./././././twitter-graph.pdf";
+    // The most time to spend laying out the graph (in milliseconds), though it usually settles well before then
+    private static final long layoutTimeBudget = 60 * 1000;
     // The minimum threshold for relationships to display in the graph
     private static final double minWeightToDisplay = 0.3;
+    // Which of the relationships above that to draw: THRESHOLD (all of them, which grows with the square of the number of people),
+    // K_NEAREST (each person's edgesPerPerson strongest), TOP_K (at most edgesPerPerson each) or BACKBONE (the disparity filter at
+    // backboneAlpha)
+    private static final GraphSparsifier.Method edgeSparsification = GraphSparsifier.Method.K_NEAREST;
+    private static final int edgesPerPerson = 5;
+    private static final double backboneAlpha = 0.05;
     // The alpha to use in Topic Modelling
     private static final double alpha = 0.6;
-    // Run the model for 50 iterations and stop (this is for testing only, for real applications, use 1000 to 2000 iterations)
+    // How to measure the distance between people's topic distributions (KL_DIVERGENCE, JENSEN_SHANNON or HELLINGER)
+    private static final SimilarityEngine.Measure similarityMeasure = SimilarityEngine.Measure.KL_DIVERGENCE;
+    // How to store the similarity matrix (HEAP, OFF_HEAP or MAPPED to SIMILARITY_PATH) and at what precision
+    private static final SimilarityMatrix.Storage similarityStorage = SimilarityMatrix.Storage.HEAP;
+    private static final SimilarityMatrix.Precision similarityPrecision = SimilarityMatrix.Precision.FLOAT;
+    // Where to keep the similarity matrix if it's mapped to a file
+    private static final String SIMILARITY_PATH = "./././././similarities.bin";
+    // Above this many people, skip the full similarity matrix and only link each person to their nearest neighbours
+    private static final int maxPeopleForFullMatrix = 5000;
+    // How many nearest neighbours to link each person to when we do that
+    private static final int nearestNeighbours = 10;
+    // Retrain the topic model from scratch once it's this old (in hours), or once this fraction of feeds are new or have changed
+    private static final int retrainAfterHours = 24 * 7;
+    private static final double maxDrift = 0.2;
+    // Run the model for at most 500 iterations (for real applications, use 1000 to 2000), stopping early once it has converged
     private static final int iterations = 500;
+    // Or once it has been sampling for this long (in milliseconds)
+    private static final long ldaTimeBudget = 10 * 60 * 1000;
+    // Checkpoint the sampler this often (in iterations) while training, so an interrupted run can resume
+    private static final String CHECKPOINT_PATH = "./././././tweets/model/checkpoint.bin";
+    private static final int checkpointInterval = 50;
+    // Before training, try every combination of these topic counts, alphas and betas on a held-out split, and train with the best
+    private static final boolean sweepHyperparameters = false;
+    private static final int[] sweepTopics = {10, 20, 30};
+    private static final double[] sweepAlphas = {0.1, 0.6, 2.0};
+    private static final double[] sweepBetas = {0.01, 0.1};
+    private static final double heldOutFraction = 0.2;
+    // Threads for each stage of getting from handles to instances (fetching uses fetchThreads from twitter.properties), and how many
+    // handles can wait between stages
+    private static final int cleanThreads = 2;
+    private static final int tokenizeThreads = Runtime.getRuntime().availableProcessors();
+    private static final int pipelineQueueCapacity = 16;
+    // Drop statuses that are near duplicates of one already fetched (retweets, syndicated headlines) before they're cached
+    private static final boolean dropNearDuplicates = true;
+    // Also stream every status we fetch into an online topic model, which keeps each person's topics current as statuses arrive
+    // without retraining. Feeds that come from the cache aren't streamed (OnlineTopicModel's main replays a cache directory)
+    private static final boolean streamToOnlineModel = false;
+    private static final int onlineTopics = 20;
+    // Measure what a person takes up on the heap holding their feed text and then holding just their word IDs, on a sample of
+    // this many people (0 to skip it, as it reads their feeds in again and runs the garbage collector)
+    private static final int personMemorySample = 200;
+    // Only model words used by at least this many people, and by no more than this fraction of them
+    private static final int minDocFrequency = 2;
+    private static final double maxDocRatio = 0.8;
+    // When retraining, carry on from the saved model rather than starting from scratch, as long as no more than this fraction of feeds
+    // are new or have changed. Warm starts stop after at most this many iterations
+    private static final boolean incrementalTraining = true;
+    private static final double maxWarmStartDrift = 0.5;
+    private static final int warmStartIterations = 100;
+    // Also train from scratch after a warm start, to check how close the warm started model came (doubles the training time)
+    private static final boolean compareWithColdStart = false;
+    // How much to print as we go (Metrics.QUIET, NORMAL or DETAILED). DETAILED prints every edge and the full similarity matrix
+    private static final int verbosity = Metrics.NORMAL;
+    // Where to write each run's timings, counts and memory use, as JSON and for Prometheus' textfile collector
+    private static final String METRICS_JSON_PATH = "./././././metrics.json";
+    private static final String METRICS_PROMETHEUS_PATH = "./././././metrics.prom";
 
     /**
      * @param args String[]
      */
     public static void main(String[] args) {
 
-        // Instantiate people from our given list of names
-        List<Person> people = new ArrayList<Person>();
-        for (String screenName : screenNames) {
-            people.add(new Person(screenName));
-        }
+        Metrics.setVerbosity(verbosity);
+        Metrics.startSampling();
+        // Written as the program exits, so a run that gives up part way still says where the time went
+        Metrics.writeOnExit(new File(METRICS_JSON_PATH), new File(METRICS_PROMETHEUS_PATH));
 
-        // If we don't already have cached information then go get it
+        // Stream the handles through fetching, cleaning, caching and tokenizing, with every stage working at once.
+        // Each feed is cached as soon as it arrives, and anyone whose feed hasn't changed since the last run skips the pipe.
+        // TODO: Store other info, e.g. LinkedIn
+        // person.setLinkedInInfo(LinkedInUtil.getLinkedInInfo(person.getName()));
         Cache cache = new Cache(TWEET_DIRECTORY);
-        Iterator<Person> it = people.iterator();
-        while (it.hasNext()) {
-            Person person = it.next();
+        Pipe pipe = MalletUtil.getPipe();
+        InstanceList instances = new InstanceList(pipe);
+        FeatureCache featureCache = new FeatureCache(FEATURE_DIRECTORY, pipe);
+        VocabularyPruner pruner = new VocabularyPruner(minDocFrequency, maxDocRatio);
+        // Twitter is only set up if someone turns out not to be cached
+        FeedPipeline feedPipeline = new FeedPipeline(cache, null, featureCache, pipe);
+        feedPipeline.setThreads(FeedPipeline.Stage.FETCH, TwitterUtil.getFetchThreads());
+        feedPipeline.setThreads(FeedPipeline.Stage.CLEAN, cleanThreads);
+        feedPipeline.setThreads(FeedPipeline.Stage.TOKENIZE, tokenizeThreads);
+        feedPipeline.setQueueCapacity(pipelineQueueCapacity);
+        // Leave out retweets and syndicated statuses we've already seen from someone (they stay in the cache)
+        NearDuplicateFilter duplicateFilter = dropNearDuplicates ? new NearDuplicateFilter() : null;
+        feedPipeline.setDuplicateFilter(duplicateFilter);
+        OnlineTopicModel onlineModel = streamToOnlineModel ? new OnlineTopicModel(onlineTopics) : null;
+        feedPipeline.setOnlineModel(onlineModel);
+        List<Person> people;
+        try {
+            BufferedReader handles = new BufferedReader(new InputStreamReader(new FileInputStream(HANDLES_PATH), "UTF-8"));
             try {
-                if (!cache.isCached(person.getName())) {
-                    // Read and store Twitter info
-                    person.setTwitterFeed(TwitterUtil.getTweets(person.getName()));
-                    cache.addTwitterFeed(person);
-
-                    // TODO: Store other info, e.g. LinkedIn
-                    // person.setLinkedInInfo(LinkedInUtil.getLinkedInInfo(person.getName()));
-                } else {
-                    person.setTwitterFeed(cache.getTwitterFeed(person));
-                }
-            }
-            catch (TwitterException e) {
-                it.remove();
-                System.out.println("Skipping " + person.getName() + ", failed to get timeline from Twitter");
+                people = feedPipeline.run(handles, instances, pruner);
+            } finally {
+                handles.close();
             }
+        } catch (IOException e) {
+            System.out.println("Couldn't read handles from " + HANDLES_PATH);
+            e.printStackTrace();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        featureCache.save();
+        if (onlineModel != null) {
+            onlineModel.flush();
+            System.out.println("\nOnline topic model has seen statuses from " + onlineModel.getPeople().size() + " people:");
+            onlineModel.printTopics(8);
         }
 
-        // Do the LDA model
-        Pipe pipe = MalletUtil.getPipe();
-        InstanceList instances = new InstanceList(pipe);
+        // Drop words too rare or too common to tell people apart before the topic model has to carry them
+        instances = pruner.prune(instances);
+        pruner.printReport();
+        Metrics.gauge("people", people.size());
+        Metrics.gauge("alphabet_size_before_pruning", pruner.getVocabularyBefore());
+        Metrics.gauge("alphabet_size", pruner.getVocabularyAfter());
+        Metrics.gauge("tokens_before_pruning", pruner.getTokensBefore());
+        Metrics.gauge("tokens", pruner.getTokensAfter());
+        for (int i = 0; i < people.size(); i++) people.get(i).setFeatures(((FeatureSequence) instances.get(i).getData()).getFeatures());
+        reportPersonMemory(people, instances, cache, personMemorySample);
+
+        // Reuse the saved topic model if it's still good enough, folding in anyone new or changed. Otherwise train a new one,
+        // warm started from the saved model if most feeds are unchanged
+        List<String> names = new ArrayList<String>();
+        Map<String, String> contentHashes = new HashMap<String, String>();
         for (Person person : people) {
-            if (person.getTwitterFeed() != null) instances.addThruPipe(new Instance(person.getTwitterFeed(), null, person.getName(), null));
+            names.add(person.getName());
+            contentHashes.put(person.getName(), cache.getContentHash(person.getName()));
+        }
+        ModelStore modelStore = new ModelStore(MODEL_DIRECTORY);
+        ModelStore.Retrain retrain = modelStore.shouldRetrain(contentHashes, retrainAfterHours, maxDrift);
+        ParallelTopicModel model = null;
+        if (retrain == ModelStore.Retrain.NONE) model = modelStore.load();
+        // Only drift can be caught up with from the saved model; an old model or a new pipe needs training from scratch
+        ParallelTopicModel previous = null;
+        if (retrain == ModelStore.Retrain.DRIFT && incrementalTraining && !sweepHyperparameters && modelStore.canWarmStart(contentHashes, maxWarmStartDrift)) {
+            previous = modelStore.load();
+        }
+        double[] topics;
+        long trainMillis = 0;
+        if (model != null) {
+            topics = modelStore.getTopicMatrix(instances, contentHashes);
+        } else if (previous != null) {
+            long start = System.currentTimeMillis();
+            model = MalletUtil.doTopicModel(instances, previous, modelStore.getUnchanged(contentHashes), warmStartIterations, ldaTimeBudget);
+            trainMillis = System.currentTimeMillis() - start;
+            printWarmStartComparison(model, trainMillis, modelStore.getColdStartCost(), instances, previous);
+            modelStore.save(model, pipe, contentHashes, trainMillis, true);
+            topics = SimilarityEngine.getTopicMatrix(model);
+        } else {
+            HyperparameterSweep.Setting best = new HyperparameterSweep.Setting(MalletUtil.defaultNumTopics(instances.size()), alpha, 0.01);
+            if (sweepHyperparameters && instances.size() > 1) {
+                HyperparameterSweep sweep = new HyperparameterSweep(instances, heldOutFraction, Runtime.getRuntime().availableProcessors(), iterations, ldaTimeBudget, 42);
+                List<HyperparameterSweep.Result> results = sweep.run(HyperparameterSweep.grid(sweepTopics, sweepAlphas, sweepBetas));
+                HyperparameterSweep.printResults(results);
+                // The sweep models never saw the held-out people, so train the winning setting again on everyone
+                if (!results.isEmpty()) best = results.get(0).setting;
+            }
+            long start = System.currentTimeMillis();
+            model = MalletUtil.doTopicModel(instances, best.numTopics, best.alpha, best.beta, iterations, ldaTimeBudget, new File(CHECKPOINT_PATH), checkpointInterval);
+            trainMillis = System.currentTimeMillis() - start;
+            modelStore.save(model, pipe, contentHashes, trainMillis, false);
+            topics = SimilarityEngine.getTopicMatrix(model);
+        }
+        int numTopics = model.getNumTopics();
+        Metrics.gauge("topics", numTopics);
+        if (trainMillis > 0) Metrics.record("lda", trainMillis * 1000000, 1);
+        if (duplicateFilter != null) {
+            duplicateFilter.printReport(trainMillis);
+            Metrics.count("duplicate_statuses", duplicateFilter.getDuplicates());
         }
-        ParallelTopicModel model = MalletUtil.doTopicModel(instances, alpha, iterations);
-
-        // Use Mallet's KL-Divergence algorithm to find nearest neighbours (lower numbers are closer)
-        double[][] similarities = MalletUtil.findSimilarities(model);
 
         // Build a graph showing what we've discovered
         System.out.println("\nBuilding graph using inverse of similarity:");
-        GraphBuilder builder = new GraphBuilder();
-        for (int i = 0; i < people.size(); i++) {
-            builder.setSize(people.get(i).getName(), people.size());
-            builder.setColor(people.get(i).getName(), 0, 0, 0.9f);
-            for (int j = i + 1; j < people.size(); j++) {
-                float weight = (float) ((float) 1/similarities[i][j]);
-                // Only add high-weight relationships so we don't have loads of annoying irrelevant lines on the graph
-                if (weight > minWeightToDisplay) builder.addUndirectedRelation(people.get(i).getName(), people.get(j).getName(), weight);
+        EdgeList edges;
+        if (people.size() <= maxPeopleForFullMatrix) {
+            // Use KL-Divergence (or another measure) to find nearest neighbours (lower numbers are closer)
+            SimilarityMatrix similarities = null;
+            try {
+                similarities = SimilarityMatrix.create(people.size(), similarityPrecision, similarityStorage, new File(SIMILARITY_PATH));
+            } catch (IOException e) {
+                System.out.println("Couldn't create similarity matrix at " + SIMILARITY_PATH);
+                e.printStackTrace();
+                System.exit(-1);
             }
+            MalletUtil.findSimilarities(topics, numTopics, names, similarityMeasure, Metrics.isVerbose(Metrics.DETAILED), similarities);
+            // Only add high-weight relationships so we don't have loads of annoying irrelevant lines on the graph
+            edges = GraphSparsifier.sparsify(similarities, edgeSparsification, minWeightToDisplay, edgesPerPerson, backboneAlpha);
+        } else {
+            // Too many people for the full matrix, so only consider each person's nearest neighbours
+            long start = System.nanoTime();
+            TopicNeighbourIndex index = new TopicNeighbourIndex(topics, people.size(), numTopics, similarityMeasure, 42);
+            List<TopicNeighbourIndex.Neighbour> neighbours = index.kNearestEdges(nearestNeighbours);
+            Metrics.time("similarity", start);
+            // Checking recall takes 100 exact searches through everyone, so only when asked for
+            if (Metrics.isVerbose(Metrics.DETAILED)) System.out.printf("Nearest neighbour recall: %.3f%n", index.recall(nearestNeighbours, 100, new Random(42)));
+            edges = GraphSparsifier.sparsify(EdgeList.fromNeighbours(neighbours), people.size(), edgeSparsification, minWeightToDisplay, edgesPerPerson, backboneAlpha);
         }
+        GraphSparsifier.printReport(edgeSparsification, edges, people.size());
+
+        // Lay the graph out and write it, nodes then edges, without going near Gephi
+        long start = System.nanoTime();
+        ForceAtlas2Layout layout = new ForceAtlas2Layout(people.size(), edges.getSources(), edges.getTargets(), edges.getWeights());
+        // Keep the nodes (at the size the PDF draws them) from sitting on top of each other, so their labels can be read
+        float[] sizes = new float[people.size()];
+        Arrays.fill(sizes, ForceAtlas2Layout.nodeSize(people.size()));
+        layout.setSizes(sizes);
+        layout.setAdjustSizes(true);
+        layout.setTimeBudget(layoutTimeBudget);
+        layout.run();
+        layout.printReport();
+        Metrics.time("layout", start);
         try {
-            builder.export(EXPORT_FORMAT,EXPORT_PATH);
+            GraphWriter.export(EXPORT_FORMAT, new File(EXPORT_PATH), names, edges, layout);
         } catch (IOException e) {
             System.out.println("Failed to export graph");
             e.printStackTrace();
             System.exit(-1);
         }
 
+        if (renderPdf) {
+            GraphBuilder builder = new GraphBuilder();
+            for (int i = 0; i < people.size(); i++) {
+                builder.setSize(people.get(i).getName(), people.size());
+                builder.setColor(people.get(i).getName(), 0, 0, 0.9f);
+            }
+            builder.addGraph(names, edges);
+            builder.setPositions(names, layout);
+            try {
+                builder.export("pdf", PDF_PATH);
+            } catch (IOException e) {
+                System.out.println("Failed to render graph");
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+
+    /* Shows how a warm started model compares with training from scratch, in time taken and log likelihood per token */
+    /**
+     * Measures the heap a sample of people take up holding their feed text, as everyone used to until the end of the run,
+     * and then once they've let go of it for the word IDs they share with their instances
+     */
+    private static void reportPersonMemory(List<Person> people, InstanceList instances, Cache cache, int sampleSize) {
+        int n = Math.min(sampleSize, people.size());
+        if (n == 0) return;
+        // Fresh people, so the text we measure isn't held by anything else
+        long baseline = Metrics.getSettledHeapBytes();
+        List<Person> sample = new ArrayList<Person>(n);
+        for (int i = 0; i < n; i++) {
+            Person person = new Person(people.get(i * people.size() / n).getName());
+            person.setTwitterFeed(cache.getTwitterFeed(person));
+            sample.add(person);
+        }
+        long withText = Metrics.getSettledHeapBytes() - baseline;
+        for (int i = 0; i < n; i++) sample.get(i).setFeatures(people.get(i * people.size() / n).getFeatures());
+        long withWordIds = Metrics.getSettledHeapBytes() - baseline;
+        System.out.printf(Locale.US, "People take up %.1fKB each holding their feed text, %.1fKB each holding the word IDs they share with their instances (measured on %d)%n",
+                withText / 1024.0 / n, withWordIds / 1024.0 / n, sample.size());
+        Metrics.gauge("person_bytes_with_feed_text", withText / n);
+        Metrics.gauge("person_bytes_with_word_ids", withWordIds / n);
     }
 
-}
\ No newline at end of file
+    private static void printWarmStartComparison(ParallelTopicModel model, long trainMillis, double[] coldStartCost, InstanceList instances, ParallelTopicModel previous) {
+        double logLikelihoodPerToken = model.modelLogLikelihood() / model.totalTokens;
+        if (compareWithColdStart) {
+            long start = System.currentTimeMillis();
+            ParallelTopicModel cold = MalletUtil.doTopicModel(instances, previous.getNumTopics(), previous.alphaSum, previous.beta, iterations, ldaTimeBudget, null, 0);
+            coldStartCost = new double[]{System.currentTimeMillis() - start, cold.modelLogLikelihood() / cold.totalTokens};
+        }
+        if (coldStartCost == null) {
+            System.out.printf(Locale.US, "Warm start took %.1fs, LL/token %.5f%n", trainMillis / 1000.0, logLikelihoodPerToken);
+        } else {
+            System.out.printf(Locale.US, "Warm start took %.1fs against %.1fs from scratch (%.1fx faster), LL/token %.5f against %.5f%n",
+                    trainMillis / 1000.0, coldStartCost[0] / 1000.0, coldStartCost[0] / Math.max(1, trainMillis), logLikelihoodPerToken, coldStartCost[1]);
+        }
+    }
+}
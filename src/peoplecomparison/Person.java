@@ -7,12 +7,17 @@ import java.util.*;
 /**
  * Person object - stores all twitter and other personal info
  *
+ * The raw feed text is only needed until it has been tokenized. After that a person can hold just their feed's word IDs
+ * (shared with their FeatureSequence rather than copied), and the text is dropped.
+ *
  * Created by Mark Clift on 19/02/15.
  */
 public class Person {
 
     private String name;
     private String twitterFeed;
+    // Word IDs of the feed once it has been through the pipe
+    private int[] features;
     private String linkedInInfo;
 
     public Person(String name) {
@@ -27,11 +32,22 @@ public class Person {
         return twitterFeed;
     }
 
+    /**
+     * Builds the feed from the statuses, one cleaned status per line (so they can still be told apart once it's cached)
+     */
     public void setTwitterFeed(List<Status> statuses) {
-        Formatter out = new Formatter(new StringBuilder(), Locale.US);
-        for(Status status : statuses) {
-            String statusText = TwitterUtil.cleanTweet(status.getText());
-            out.format("%s", statusText + " ");
+        // Clean every status straight into one buffer, sized up front so it rarely has to grow
+        int length = 0;
+        for (Status status : statuses) length += status.getText().length() + 1;
+        StringBuilder out = new StringBuilder(length);
+        for (Status status : statuses) {
+            if (out.length() > 0) out.append('\n');
+            int start = out.length();
+            TwitterUtil.cleanTweet(status.getText(), out);
+            // Line breaks within a status would look like the start of another one
+            for (int i = start; i < out.length(); i++) {
+                if (out.charAt(i) == '\n' || out.charAt(i) == '\r') out.setCharAt(i, ' ');
+            }
         }
         this.twitterFeed = out.toString();
     }
@@ -40,6 +56,18 @@ public class Person {
         this.twitterFeed = feed;
     }
 
+    public int[] getFeatures() {
+        return features;
+    }
+
+    /**
+     * Keeps the feed as word IDs only (e.g. a FeatureSequence's own array, so it isn't copied) and lets go of the raw text
+     */
+    public void setFeatures(int[] features) {
+        this.features = features;
+        this.twitterFeed = null;
+    }
+
     public String getLinkedInInfo() {
         return linkedInInfo;
     }
@@ -0,0 +1,65 @@
+package peoplecomparison;
+
+import twitter4j.*;
+
+/**
+ * Keeps track of how many API requests we have left in the current rate limit window,
+ * and blocks callers until the window resets once the budget is spent.
+ * Shared between all fetcher threads so access is synchronized.
+ */
+public class RateLimitBudget {
+
+    // How many requests we're allowed per window, and how long a window is (in seconds)
+    private final int requestsPerWindow;
+    private final int windowSeconds;
+    // Requests left in this window and when the window resets (in millis)
+    private int remaining;
+    private long resetTime;
+
+    public RateLimitBudget(int requestsPerWindow, int windowSeconds) {
+        this.requestsPerWindow = requestsPerWindow;
+        this.windowSeconds = windowSeconds;
+        this.remaining = requestsPerWindow;
+        this.resetTime = System.currentTimeMillis() + windowSeconds * 1000L;
+    }
+
+    /**
+     * Takes one request from the budget, waiting for the window to reset if there's nothing left
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= resetTime) {
+                remaining = requestsPerWindow;
+                resetTime = now + windowSeconds * 1000L;
+            }
+            if (remaining > 0) {
+                remaining--;
+                return;
+            }
+            wait(resetTime - now);
+        }
+    }
+
+    /**
+     * Brings our view of the window in line with what the API last told us
+     */
+    public synchronized void update(RateLimitStatus status) {
+        if (status == null) return;
+        remaining = status.getRemaining();
+        resetTime = status.getResetTimeInSeconds() * 1000L;
+        notifyAll();
+    }
+
+    /**
+     * We've been throttled, so treat the budget as spent until the window resets
+     */
+    public synchronized void exhaust(int secondsUntilReset) {
+        remaining = 0;
+        resetTime = System.currentTimeMillis() + Math.max(secondsUntilReset, 1) * 1000L;
+    }
+
+    public synchronized int getRemaining() {
+        return remaining;
+    }
+}
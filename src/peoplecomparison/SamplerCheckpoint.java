@@ -0,0 +1,166 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Periodic checkpoints of a topic model's sampler state, so a long run that dies can pick up where it left off.
+ *
+ * A checkpoint holds the iteration we'd reached, the hyperparameters, the alphabet, and the topic assignment of
+ * every token. The assignments are copied on the sampling thread (which is quick), and then compressed and written
+ * on a background thread so sampling carries on meanwhile. If the previous checkpoint is still being written when
+ * the next is due, the new one is skipped rather than making the sampler wait.
+ *
+ * On resume the same instances are added to a fresh model, the saved assignments are put back, and the topic
+ * counts are rebuilt from them.
+ */
+public class SamplerCheckpoint {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private Future<?> pending;
+
+    public SamplerCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Saves the model's state as of the given iteration in the background, using a copy of the topic assignments
+     * we've already taken. Returns false if the last checkpoint was still being written so this one was skipped.
+     */
+    public boolean save(ParallelTopicModel model, int iteration, final int[][] topicAssignments) {
+        if (pending != null && !pending.isDone()) return false;
+
+        // Everything the writer needs is copied here, so the sampler is free to carry on changing the model
+        final int savedIteration = iteration;
+        final int numTopics = model.getNumTopics();
+        final double[] alpha = model.alpha.clone();
+        final double alphaSum = model.alphaSum;
+        final double beta = model.beta;
+        final double betaSum = model.betaSum;
+        final String[] names = new String[model.getData().size()];
+        for (int doc = 0; doc < names.length; doc++) names[doc] = (String) model.getData().get(doc).instance.getName();
+        final Object[] words = model.getAlphabet().toArray();
+
+        pending = writer.submit(new Runnable() {
+            public void run() {
+                try {
+                    File dir = file.getAbsoluteFile().getParentFile();
+                    if (dir != null && !dir.exists()) dir.mkdirs();
+                    File tmp = new File(file.getPath() + ".tmp");
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(savedIteration);
+                    out.writeInt(numTopics);
+                    for (double a : alpha) out.writeDouble(a);
+                    out.writeDouble(alphaSum);
+                    out.writeDouble(beta);
+                    out.writeDouble(betaSum);
+                    out.writeInt(words.length);
+                    for (Object word : words) out.writeUTF((String) word);
+                    out.writeInt(names.length);
+                    for (int doc = 0; doc < names.length; doc++) {
+                        out.writeUTF(names[doc]);
+                        out.writeInt(topicAssignments[doc].length);
+                        for (int topic : topicAssignments[doc]) out.writeInt(topic);
+                    }
+                    out.close();
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    System.out.println("Couldn't write checkpoint to " + file);
+                    e.printStackTrace();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Puts the checkpointed state back into a model that has had the same instances added (in the same order),
+     * returning the iteration it had reached, or 0 if there's no checkpoint or it doesn't match this model
+     */
+    public int restore(ParallelTopicModel model) {
+        if (!file.exists()) return 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() != FORMAT_VERSION) return mismatch("it was written by a different version");
+                int iteration = in.readInt();
+                if (in.readInt() != model.getNumTopics()) return mismatch("the number of topics is different");
+                double[] alpha = new double[model.getNumTopics()];
+                for (int topic = 0; topic < alpha.length; topic++) alpha[topic] = in.readDouble();
+                double alphaSum = in.readDouble();
+                double beta = in.readDouble();
+                double betaSum = in.readDouble();
+
+                Alphabet alphabet = model.getAlphabet();
+                int numWords = in.readInt();
+                if (numWords != alphabet.size()) return mismatch("the alphabet is different");
+                for (int word = 0; word < numWords; word++) {
+                    if (!in.readUTF().equals(alphabet.lookupObject(word))) return mismatch("the alphabet is different");
+                }
+
+                ArrayList<TopicAssignment> data = model.getData();
+                if (in.readInt() != data.size()) return mismatch("the documents are different");
+                int[][] assignments = new int[data.size()][];
+                for (int doc = 0; doc < data.size(); doc++) {
+                    LabelSequence sequence = data.get(doc).topicSequence;
+                    if (!in.readUTF().equals(data.get(doc).instance.getName())) return mismatch("the documents are different");
+                    assignments[doc] = new int[in.readInt()];
+                    if (assignments[doc].length != sequence.getLength()) return mismatch("the documents are different");
+                    for (int position = 0; position < assignments[doc].length; position++) assignments[doc][position] = in.readInt();
+                }
+
+                // Everything matches, so swap the state in and rebuild the counts from it
+                for (int doc = 0; doc < data.size(); doc++) {
+                    System.arraycopy(assignments[doc], 0, data.get(doc).topicSequence.getFeatures(), 0, assignments[doc].length);
+                }
+                model.alpha = alpha;
+                model.alphaSum = alphaSum;
+                model.beta = beta;
+                model.betaSum = betaSum;
+                model.buildInitialTypeTopicCounts();
+                System.out.println("Resuming topic model from checkpoint at iteration " + iteration);
+                return iteration;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Couldn't read checkpoint " + file + ", starting from scratch");
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Waits for any checkpoint still being written. If the run finished, the checkpoint is removed so the next run doesn't resume it.
+     */
+    public void close(boolean finished) {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (finished) file.delete();
+    }
+
+    private int mismatch(String reason) {
+        System.out.println("Ignoring checkpoint " + file + " because " + reason);
+        return 0;
+    }
+}
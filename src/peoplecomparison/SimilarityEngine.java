@@ -0,0 +1,162 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+import cc.mallet.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Works out the distance between every pair of documents in a topic model.
+ *
+ * The topic distributions are pulled out of the model once into a single n x k array (plus the logs or square roots
+ * the chosen measure needs), and the pairs are then split into square tiles which are computed in parallel on a
+ * fork-join pool. Results go into a SimilarityMatrix, which only stores each pair once: for KL divergence that's
+ * KL(i||j) with i the lower index.
+ */
+public class SimilarityEngine {
+
+    public enum Measure {
+        // Mallet's KL divergence (in bits). Not symmetric, and unbounded
+        KL_DIVERGENCE,
+        // Symmetric, smoothed version of KL (in bits), between 0 and 1
+        JENSEN_SHANNON,
+        // Symmetric distance between the square roots of the distributions, between 0 and 1
+        HELLINGER
+    }
+
+    // Rows per tile. 64 rows of 50 topics is 25KB, so a pair of tiles sits comfortably in L2
+    private static final int TILE_SIZE = 64;
+
+    private final Measure measure;
+    private final ForkJoinPool pool;
+
+    public SimilarityEngine(Measure measure) {
+        this(measure, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SimilarityEngine(Measure measure, int numThreads) {
+        this.measure = measure;
+        this.pool = new ForkJoinPool(numThreads);
+    }
+
+    /**
+     * Returns the topic distribution of every document in the model as one row-major n x k array
+     */
+    public static double[] getTopicMatrix(ParallelTopicModel model) {
+        int numDocs = model.getData().size();
+        int numTopics = model.getNumTopics();
+        double[] topics = new double[numDocs * numTopics];
+        for (int doc = 0; doc < numDocs; doc++) {
+            System.arraycopy(model.getTopicProbabilities(doc), 0, topics, doc * numTopics, numTopics);
+        }
+        return topics;
+    }
+
+    public SimilarityMatrix compute(ParallelTopicModel model) {
+        SimilarityMatrix sims = SimilarityMatrix.create(model.getData().size(), SimilarityMatrix.Precision.DOUBLE);
+        compute(model, sims);
+        return sims;
+    }
+
+    public void compute(ParallelTopicModel model, SimilarityMatrix sims) {
+        compute(getTopicMatrix(model), model.getData().size(), model.getNumTopics(), sims);
+    }
+
+    /**
+     * Fills in the distances between the rows of a row-major numDocs x numTopics array
+     */
+    public void compute(final double[] topics, final int numDocs, final int numTopics, final SimilarityMatrix sims) {
+        // Precompute whatever the measure needs per element, so the inner loop is just multiplies and adds
+        final double[] transformed;
+        if (measure == Measure.KL_DIVERGENCE) transformed = transform(topics, true);
+        else if (measure == Measure.HELLINGER) transformed = transform(topics, false);
+        else transformed = topics;
+
+        final List<RecursiveAction> tiles = new ArrayList<RecursiveAction>();
+        for (int rowStart = 0; rowStart < numDocs; rowStart += TILE_SIZE) {
+            for (int colStart = rowStart; colStart < numDocs; colStart += TILE_SIZE) {
+                final int rows = rowStart;
+                final int cols = colStart;
+                tiles.add(new RecursiveAction() {
+                    protected void compute() {
+                        computeTile(topics, transformed, numDocs, numTopics, rows, cols, sims);
+                    }
+                });
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tiles);
+            }
+        });
+    }
+
+    private void computeTile(double[] topics, double[] transformed, int numDocs, int numTopics, int rowStart, int colStart, SimilarityMatrix sims) {
+        int rowEnd = Math.min(rowStart + TILE_SIZE, numDocs);
+        int colEnd = Math.min(colStart + TILE_SIZE, numDocs);
+        for (int i = rowStart; i < rowEnd; i++) {
+            int iOffset = i * numTopics;
+            // On the diagonal tile only do the pairs above the diagonal
+            for (int j = Math.max(colStart, i + 1); j < colEnd; j++) {
+                int jOffset = j * numTopics;
+                switch (measure) {
+                    case KL_DIVERGENCE:
+                        sims.set(i, j, klDivergence(topics, transformed, iOffset, jOffset, numTopics));
+                        break;
+                    case JENSEN_SHANNON:
+                        sims.set(i, j, jensenShannon(topics, iOffset, jOffset, numTopics));
+                        break;
+                    case HELLINGER:
+                        sims.set(i, j, hellinger(transformed, iOffset, jOffset, numTopics));
+                        break;
+                }
+            }
+        }
+    }
+
+    /* Same as Maths.klDivergence, using precomputed logs */
+    static double klDivergence(double[] p, double[] logP, int pOffset, int qOffset, int numTopics) {
+        double klDiv = 0.0;
+        for (int t = 0; t < numTopics; t++) {
+            double p1 = p[pOffset + t];
+            if (p1 == 0) continue;
+            if (p[qOffset + t] == 0) return Double.POSITIVE_INFINITY;
+            klDiv += p1 * (logP[pOffset + t] - logP[qOffset + t]);
+        }
+        return klDiv / Maths.log2;
+    }
+
+    /* Same as Maths.jensenShannonDivergence */
+    static double jensenShannon(double[] p, int pOffset, int qOffset, int numTopics) {
+        double divergence = 0.0;
+        for (int t = 0; t < numTopics; t++) {
+            double p1 = p[pOffset + t];
+            double p2 = p[qOffset + t];
+            double average = (p1 + p2) / 2;
+            if (p1 > 0) divergence += p1 * Math.log(p1 / average);
+            if (p2 > 0) divergence += p2 * Math.log(p2 / average);
+        }
+        return divergence / 2 / Maths.log2;
+    }
+
+    /* Hellinger distance, given square roots of the distributions */
+    static double hellinger(double[] sqrtP, int pOffset, int qOffset, int numTopics) {
+        double sum = 0.0;
+        for (int t = 0; t < numTopics; t++) {
+            double diff = sqrtP[pOffset + t] - sqrtP[qOffset + t];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum / 2);
+    }
+
+    private static double[] transform(double[] topics, boolean log) {
+        double[] transformed = new double[topics.length];
+        for (int i = 0; i < topics.length; i++) transformed[i] = log ? Math.log(topics[i]) : Math.sqrt(topics[i]);
+        return transformed;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,217 @@
+package peoplecomparison;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A symmetric n x n matrix of distances between documents, storing only the packed upper triangle
+ * (the diagonal is always 0 and isn't stored either).
+ *
+ * Values can be held as floats or doubles, on the heap, off the heap in direct buffers, or in a memory mapped
+ * file so it can be bigger than the heap and reloaded later. A buffer can only address 2GB, so the values are
+ * split across as many segments as needed.
+ *
+ * For asymmetric measures like KL divergence, get(i, j) and get(j, i) both return the value for the lower index
+ * against the higher one.
+ */
+public class SimilarityMatrix {
+
+    public enum Precision {
+        FLOAT(4), DOUBLE(8);
+
+        final int bytes;
+
+        Precision(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    public enum Storage {
+        HEAP, OFF_HEAP, MAPPED
+    }
+
+    private static final int MAGIC = 0x53494d4d; // "SIMM"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    // Values per segment, small enough for a segment of doubles to fit in one buffer
+    private static final int SEGMENT_BITS = 26;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final int size;
+    private final Precision precision;
+    private final ByteBuffer[] segments;
+    // Whether the segments are mapped from a file
+    private final boolean mapped;
+
+    private SimilarityMatrix(int size, Precision precision, ByteBuffer[] segments, boolean mapped) {
+        this.size = size;
+        this.precision = precision;
+        this.segments = segments;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Creates an empty matrix. The file is only used (and overwritten) for MAPPED storage.
+     */
+    public static SimilarityMatrix create(int size, Precision precision, Storage storage, File file) throws IOException {
+        long numValues = (long) size * (size - 1) / 2;
+        if (storage == Storage.MAPPED) return map(file, size, precision, true);
+
+        ByteBuffer[] segments = new ByteBuffer[numSegments(numValues)];
+        for (int s = 0; s < segments.length; s++) {
+            int bytes = (int) (segmentLength(numValues, s) * precision.bytes);
+            segments[s] = (storage == Storage.OFF_HEAP) ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        }
+        return new SimilarityMatrix(size, precision, segments, false);
+    }
+
+    public static SimilarityMatrix create(int size, Precision precision) {
+        try {
+            return create(size, precision, Storage.HEAP, null);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Can't happen without a file
+        }
+    }
+
+    /**
+     * Loads a matrix written by save(), or created with MAPPED storage, either by mapping the file or by reading it onto the heap
+     */
+    public static SimilarityMatrix load(File file, boolean mapped) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int size;
+        Precision precision;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException(file + " is not a similarity matrix");
+            size = in.readInt();
+            precision = Precision.values()[in.readInt()];
+        } finally {
+            in.close();
+        }
+        if (mapped) return map(file, size, precision, false);
+
+        SimilarityMatrix matrix = create(size, precision);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            channel.position(HEADER_BYTES);
+            for (ByteBuffer segment : matrix.segments) {
+                while (segment.hasRemaining()) {
+                    if (channel.read(segment) < 0) throw new EOFException("Similarity matrix " + file + " is truncated");
+                }
+                segment.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return matrix;
+    }
+
+    /**
+     * Writes the matrix to a file that load() can read back. For MAPPED storage this just flushes it to disk.
+     */
+    public void save(File file) throws IOException {
+        if (mapped) {
+            for (ByteBuffer segment : segments) ((MappedByteBuffer) segment).force();
+            return;
+        }
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            ByteBuffer header = header(size, precision);
+            while (header.hasRemaining()) channel.write(header);
+            for (ByteBuffer segment : segments) {
+                ByteBuffer view = segment.duplicate();
+                view.clear();
+                while (view.hasRemaining()) channel.write(view);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public double get(int i, int j) {
+        if (i == j) return 0;
+        long index = (i < j) ? index(i, j) : index(j, i);
+        ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+        int offset = (int) (index & (SEGMENT_SIZE - 1)) * precision.bytes;
+        return (precision == Precision.FLOAT) ? segment.getFloat(offset) : segment.getDouble(offset);
+    }
+
+    /* Sets the value for i and j (either way round). Safe to call from several threads as long as they set different pairs */
+    public void set(int i, int j, double value) {
+        if (i == j) return;
+        long index = (i < j) ? index(i, j) : index(j, i);
+        ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+        int offset = (int) (index & (SEGMENT_SIZE - 1)) * precision.bytes;
+        if (precision == Precision.FLOAT) segment.putFloat(offset, (float) value);
+        else segment.putDouble(offset, value);
+    }
+
+    /**
+     * Reads all of row i into the given array (which must be at least size() long) and returns it
+     */
+    public double[] getRow(int i, double[] row) {
+        for (int j = 0; j < i; j++) row[j] = get(j, i);
+        row[i] = 0;
+        // The rest of the row is contiguous in the packed triangle
+        if (i + 1 < size) {
+            long index = index(i, i + 1);
+            for (int j = i + 1; j < size; j++, index++) {
+                ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+                int offset = (int) (index & (SEGMENT_SIZE - 1)) * precision.bytes;
+                row[j] = (precision == Precision.FLOAT) ? segment.getFloat(offset) : segment.getDouble(offset);
+            }
+        }
+        return row;
+    }
+
+    /* Position of (i, j), i < j, in the packed upper triangle */
+    private long index(int i, int j) {
+        return (long) i * size - (long) i * (i + 1) / 2 + (j - i - 1);
+    }
+
+    private static SimilarityMatrix map(File file, int size, Precision precision, boolean create) throws IOException {
+        long numValues = (long) size * (size - 1) / 2;
+        RandomAccessFile raf = new RandomAccessFile(file, create ? "rw" : "r");
+        FileChannel channel = raf.getChannel();
+        try {
+            if (create) {
+                raf.setLength(0);
+                raf.setLength(HEADER_BYTES + numValues * precision.bytes);
+                ByteBuffer header = header(size, precision);
+                while (header.hasRemaining()) channel.write(header, HEADER_BYTES - header.remaining());
+            }
+            ByteBuffer[] segments = new ByteBuffer[numSegments(numValues)];
+            for (int s = 0; s < segments.length; s++) {
+                long position = HEADER_BYTES + (s * SEGMENT_SIZE) * precision.bytes;
+                segments[s] = channel.map(create ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, position, segmentLength(numValues, s) * precision.bytes);
+            }
+            return new SimilarityMatrix(size, precision, segments, true);
+        } finally {
+            // The mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer header(int size, Precision precision) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(precision.ordinal());
+        header.flip();
+        return header;
+    }
+
+    private static int numSegments(long numValues) {
+        return (int) ((numValues + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    private static long segmentLength(long numValues, int segment) {
+        return Math.min(SEGMENT_SIZE, numValues - segment * SEGMENT_SIZE);
+    }
+}
@@ -0,0 +1,508 @@
+package peoplecomparison;
+
+import cc.mallet.pipe.*;
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+import com.sun.net.httpserver.*;
+import twitter4j.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Keeps everyone's topic distribution and a nearest neighbour index in memory, and answers questions about them over
+ * HTTP on localhost, so asking who is like whom doesn't mean a whole PeopleComparison run.
+ *
+ *   GET  /similar?name=X&k=10   the k people closest to X, closest first
+ *   GET  /distance?a=X&b=Y      the distance from X to Y (for KL divergence, KL(X || Y))
+ *   POST /refresh?name=Z        fetch Z's latest statuses if their cached feed has expired, infer their topics against
+ *                               the trained model, and add or update them
+ *   GET  /people                everyone we know about
+ *   GET  /health                how many people, and how many of them the index covers
+ *
+ * Everything comes back as JSON. Queries share a read lock and run in parallel, and updates take the write lock only
+ * long enough to store the new distribution. People added or changed since the index was built are checked by brute
+ * force alongside it, and once there are enough of them the index is rebuilt in the background and swapped in.
+ */
+public class SimilarityService {
+
+    public static final int DEFAULT_PORT = 8642;
+    private static final String MODEL_DIRECTORY = "./././././tweets/model/";
+    private static final String TWEET_DIRECTORY = "./././././tweets/";
+    // Rebuild the index once this many people (or this fraction of everyone, if that's more) have changed since it was built
+    private static final int MIN_REBUILD = 256;
+    private static final double REBUILD_FRACTION = 0.05;
+    private static final int DEFAULT_K = 10;
+
+    private final int numTopics;
+    private final SimilarityEngine.Measure measure;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Everyone's distributions, row-major, with the logs and square roots the measures need. Guarded by lock
+    private final List<String> names = new ArrayList<String>();
+    private final Map<String, Integer> docs = new HashMap<String, Integer>();
+    private double[] topics;
+    private double[] logTopics;
+    private double[] sqrtTopics;
+    // When each person last changed (against changes), so we know which of them the index still describes
+    private long[] changedAt;
+    private long changes = 0;
+    private TopicNeighbourIndex index;
+    private long indexedAt = -1;
+    // The people the index doesn't know or is out of date for
+    private final Set<Integer> unindexed = new LinkedHashSet<Integer>();
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "index-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private boolean rebuilding = false;
+
+    // What refresh needs to get from a handle to a distribution. Only one refresh runs at a time
+    private ModelStore modelStore;
+    private Pipe pipe;
+    private Cache cache;
+    private TimelineFetcher fetcher;
+    private final Object refreshLock = new Object();
+
+    private HttpServer server;
+
+    /**
+     * @param topics one row of numTopics per name, as from SimilarityEngine.getTopicMatrix
+     */
+    public SimilarityService(List<String> names, double[] topics, int numTopics, SimilarityEngine.Measure measure) {
+        this.numTopics = numTopics;
+        this.measure = measure;
+        int capacity = Math.max(16, names.size());
+        this.topics = new double[capacity * numTopics];
+        this.logTopics = new double[capacity * numTopics];
+        this.sqrtTopics = new double[capacity * numTopics];
+        this.changedAt = new long[capacity];
+        for (int doc = 0; doc < names.size(); doc++) {
+            this.names.add(names.get(doc));
+            docs.put(names.get(doc), doc);
+            setRow(doc, topics, doc * numTopics);
+        }
+        rebuildIndex();
+    }
+
+    /**
+     * Lets /refresh fetch (if fetcher isn't null), cache, tokenize and infer new people against the saved model. The pipe
+     * only has to tokenize (as MalletUtil.getTokenPipe() does), as the words are looked up in the model's own alphabet
+     */
+    public void setUpdater(ModelStore modelStore, Pipe pipe, Cache cache, TimelineFetcher fetcher) {
+        this.modelStore = modelStore;
+        this.pipe = pipe;
+        this.cache = cache;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Returns the k people closest to name (closest first), or null if we don't know them
+     */
+    public List<TopicNeighbourIndex.Neighbour> similar(String name, int k) {
+        lock.readLock().lock();
+        try {
+            Integer doc = docs.get(name);
+            if (doc == null) return null;
+            // There can't be more neighbours than everyone else, and the queue is sized by k
+            k = Math.min(k, names.size() - 1);
+            if (k < 1) return new ArrayList<TopicNeighbourIndex.Neighbour>();
+            PriorityQueue<TopicNeighbourIndex.Neighbour> best = new PriorityQueue<TopicNeighbourIndex.Neighbour>(k + 1, Collections.reverseOrder());
+            if (isIndexed(doc)) {
+                // Ask for enough extra that we still have k once anyone out of date is dropped
+                for (TopicNeighbourIndex.Neighbour neighbour : index.query(doc, k + unindexed.size())) {
+                    if (isIndexed(neighbour.target)) offer(best, new TopicNeighbourIndex.Neighbour(doc, neighbour.target, neighbour.distance), k);
+                }
+                for (int other : unindexed) {
+                    if (other != doc) offer(best, new TopicNeighbourIndex.Neighbour(doc, other, distance(doc, other)), k);
+                }
+            } else {
+                for (int other = 0; other < names.size(); other++) {
+                    if (other != doc) offer(best, new TopicNeighbourIndex.Neighbour(doc, other, distance(doc, other)), k);
+                }
+            }
+            List<TopicNeighbourIndex.Neighbour> sorted = new ArrayList<TopicNeighbourIndex.Neighbour>(best);
+            Collections.sort(sorted);
+            return sorted;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The distance from a to b, or NaN if we don't know one of them
+     */
+    public double distance(String a, String b) {
+        lock.readLock().lock();
+        try {
+            Integer docA = docs.get(a);
+            Integer docB = docs.get(b);
+            if (docA == null || docB == null) return Double.NaN;
+            return distance(docA, docB);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getName(int doc) {
+        lock.readLock().lock();
+        try {
+            return names.get(doc);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> getNames() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<String>(names);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds someone, or replaces their distribution if we already have them. Returns true if they're new
+     */
+    public boolean put(String name, double[] distribution) {
+        boolean added;
+        lock.writeLock().lock();
+        try {
+            Integer doc = docs.get(name);
+            added = (doc == null);
+            if (added) {
+                doc = names.size();
+                ensureCapacity(doc + 1);
+                names.add(name);
+                docs.put(name, doc);
+            }
+            setRow(doc, distribution, 0);
+            unindexed.add(doc);
+            if (!rebuilding && unindexed.size() >= Math.max(MIN_REBUILD, REBUILD_FRACTION * names.size())) {
+                rebuilding = true;
+                rebuilder.submit(new Runnable() {
+                    public void run() {
+                        rebuildIndex();
+                    }
+                });
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return added;
+    }
+
+    /**
+     * Brings someone's feed up to date (fetching it if the cached one has expired and we can reach Twitter, and otherwise
+     * making do with the cached one), works out their topics against the trained model and adds or updates them. Returns
+     * true if they're new
+     */
+    public boolean refresh(String name) throws InterruptedException, IOException {
+        if (modelStore == null) throw new IllegalStateException("No model to infer new people against");
+        double[] distribution;
+        synchronized (refreshLock) {
+            Person person = new Person(name);
+            String fetchError = null;
+            if (fetcher != null && !cache.isCached(name)) {
+                boolean refreshing = cache.canRefresh(name);
+                try {
+                    List<Status> statuses = refreshing ? fetcher.fetch(name, cache.getNewestStatusId(name)) : fetcher.fetch(name);
+                    person.setTwitterFeed(statuses);
+                    if (refreshing) cache.appendTwitterFeed(person, TimelineFetcher.newestStatusId(statuses));
+                    else cache.addTwitterFeed(person, TimelineFetcher.newestStatusId(statuses));
+                    person.setTwitterFeed((String) null);
+                } catch (TwitterException e) {
+                    // Fall back on whatever we have cached, however old
+                    fetchError = e.getErrorMessage() != null ? e.getErrorMessage() : "status " + e.getStatusCode();
+                    System.out.println("Couldn't get " + name + "'s timeline from Twitter (" + fetchError + "), using the cached feed if there is one");
+                }
+            }
+            if (!cache.hasTwitterFeed(name)) {
+                throw new FileNotFoundException("No feed for " + name + ((fetchError != null) ? ", and Twitter said " + fetchError : ""));
+            }
+            Instance instance = pipe.instanceFrom(new Instance(cache.getTwitterFeedView(person), null, name, null));
+            distribution = modelStore.infer(instance);
+        }
+        return put(name, distribution);
+    }
+
+    /**
+     * Starts answering on localhost:port (0 for any free port). Returns the port we're listening on
+     */
+    public int start(int port, int numThreads) throws IOException {
+        // The headers and body go out as separate writes, and without this Nagle holds the body back until the client's
+        // delayed ack, adding 40ms to every answer
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/similar", new Handler("similar") {
+            String handle(Map<String, String> query) throws Exception {
+                String name = required(query, "name");
+                int k = query.containsKey("k") ? Integer.parseInt(query.get("k")) : DEFAULT_K;
+                if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+                List<TopicNeighbourIndex.Neighbour> neighbours = similar(name, k);
+                if (neighbours == null) throw new NoSuchElementException("Unknown person " + name);
+                StringBuilder out = new StringBuilder("{\"name\":\"").append(GraphWriter.json(name)).append("\",\"neighbours\":[");
+                for (int i = 0; i < neighbours.size(); i++) {
+                    if (i > 0) out.append(',');
+                    out.append("{\"name\":\"").append(GraphWriter.json(getName(neighbours.get(i).target)))
+                            .append("\",\"distance\":").append(number(neighbours.get(i).distance)).append('}');
+                }
+                return out.append("]}").toString();
+            }
+        });
+        server.createContext("/distance", new Handler("distance") {
+            String handle(Map<String, String> query) throws Exception {
+                String a = required(query, "a");
+                String b = required(query, "b");
+                double distance = distance(a, b);
+                if (Double.isNaN(distance)) throw new NoSuchElementException("Unknown person " + (knows(a) ? b : a));
+                return "{\"a\":\"" + GraphWriter.json(a) + "\",\"b\":\"" + GraphWriter.json(b) + "\",\"distance\":" + number(distance) + "}";
+            }
+        });
+        server.createContext("/refresh", new Handler("refresh") {
+            boolean allows(String method) {
+                return "POST".equals(method);
+            }
+
+            String handle(Map<String, String> query) throws Exception {
+                String name = required(query, "name");
+                long start = System.currentTimeMillis();
+                boolean added = refresh(name);
+                return "{\"name\":\"" + GraphWriter.json(name) + "\",\"added\":" + added + ",\"millis\":" + (System.currentTimeMillis() - start) + "}";
+            }
+        });
+        server.createContext("/people", new Handler("people") {
+            String handle(Map<String, String> query) {
+                StringBuilder out = new StringBuilder("{\"people\":[");
+                List<String> all = getNames();
+                for (int i = 0; i < all.size(); i++) {
+                    if (i > 0) out.append(',');
+                    out.append('"').append(GraphWriter.json(all.get(i))).append('"');
+                }
+                return out.append("]}").toString();
+            }
+        });
+        server.createContext("/health", new Handler("health") {
+            String handle(Map<String, String> query) {
+                lock.readLock().lock();
+                try {
+                    return "{\"people\":" + names.size() + ",\"indexed\":" + (names.size() - unindexed.size()) + ",\"topics\":" + numTopics + "}";
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(numThreads));
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+        rebuilder.shutdownNow();
+    }
+
+    /**
+     * Serves the saved topic model (so PeopleComparison has to have run at least once) on localhost, port DEFAULT_PORT
+     * unless another is given
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ModelStore modelStore = new ModelStore(MODEL_DIRECTORY);
+        ParallelTopicModel model = modelStore.hasModel() ? modelStore.load() : null;
+        if (model == null) {
+            System.out.println("No saved topic model in " + MODEL_DIRECTORY + ", run PeopleComparison first");
+            return;
+        }
+        List<String> names = new ArrayList<String>();
+        for (TopicAssignment doc : model.getData()) names.add((String) doc.instance.getName());
+        long start = System.currentTimeMillis();
+        SimilarityService service = new SimilarityService(names, SimilarityEngine.getTopicMatrix(model), model.getNumTopics(), SimilarityEngine.Measure.KL_DIVERGENCE);
+        TimelineFetcher fetcher = null;
+        if (TwitterUtil.isConfigured()) {
+            fetcher = new TimelineFetcher(TwitterUtil.getTimelineSource(), TwitterUtil.getMaxPages(), TwitterUtil.getRateLimitBudget());
+        } else {
+            System.out.println("No Twitter credentials, so /refresh will only use cached feeds");
+        }
+        // Only tokenize, so refreshing people doesn't grow an alphabet for as long as the service runs
+        service.setUpdater(modelStore, MalletUtil.getTokenPipe(), new Cache(TWEET_DIRECTORY), fetcher);
+        int listening = service.start(port, Runtime.getRuntime().availableProcessors() * 2);
+        System.out.println("Serving " + names.size() + " people on http://localhost:" + listening + "/ (ready in " + (System.currentTimeMillis() - start) + "ms)");
+    }
+
+    /* One endpoint: parses the query string, turns what handle() returns into a 200 and anything it throws into an error */
+    private abstract class Handler implements HttpHandler {
+        private final String name;
+
+        Handler(String name) {
+            this.name = name;
+        }
+
+        boolean allows(String method) {
+            return "GET".equals(method);
+        }
+
+        abstract String handle(Map<String, String> query) throws Exception;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            int status = 200;
+            String body;
+            try {
+                if (!allows(exchange.getRequestMethod())) {
+                    status = 405;
+                    body = error("Method " + exchange.getRequestMethod() + " not allowed");
+                } else {
+                    body = handle(parseQuery(exchange.getRequestURI().getRawQuery()));
+                }
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = error(e.getMessage());
+            } catch (NoSuchElementException e) {
+                status = 404;
+                body = error(e.getMessage());
+            } catch (FileNotFoundException e) {
+                status = 404;
+                body = error(e.getMessage());
+            } catch (Exception e) {
+                status = 500;
+                body = error(e.toString());
+            }
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            Metrics.time("service_" + name, start);
+            if (status != 200) Metrics.count("service_errors");
+        }
+    }
+
+    private boolean knows(String name) {
+        lock.readLock().lock();
+        try {
+            return docs.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String required(Map<String, String> query, String parameter) {
+        String value = query.get(parameter);
+        if (value == null || value.isEmpty()) throw new IllegalArgumentException("Missing " + parameter);
+        return value;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) return query;
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals < 0) query.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String error(String message) {
+        return "{\"error\":\"" + GraphWriter.json(String.valueOf(message)) + "\"}";
+    }
+
+    /* JSON has no infinity, which KL divergence can be */
+    private static String number(double value) {
+        return (Double.isNaN(value) || Double.isInfinite(value)) ? "null" : Double.toString(value);
+    }
+
+    /* Builds a new index over everyone we have now, then swaps it in */
+    private void rebuildIndex() {
+        int numDocs;
+        double[] snapshot;
+        long snapshotAt;
+        lock.readLock().lock();
+        try {
+            numDocs = names.size();
+            snapshot = Arrays.copyOf(topics, numDocs * numTopics);
+            snapshotAt = changes;
+        } finally {
+            lock.readLock().unlock();
+        }
+        TopicNeighbourIndex rebuilt = new TopicNeighbourIndex(snapshot, numDocs, numTopics, measure, 42);
+
+        lock.writeLock().lock();
+        try {
+            index = rebuilt;
+            indexedAt = snapshotAt;
+            // Anyone who changed while we were building is still out of date
+            Iterator<Integer> iterator = unindexed.iterator();
+            while (iterator.hasNext()) {
+                if (isIndexed(iterator.next())) iterator.remove();
+            }
+            rebuilding = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* Whether the index describes doc as it is now. Call with the lock held */
+    private boolean isIndexed(int doc) {
+        return index != null && doc < index.size() && changedAt[doc] <= indexedAt;
+    }
+
+    /* Call with the lock held */
+    private double distance(int doc1, int doc2) {
+        int offset1 = doc1 * numTopics;
+        int offset2 = doc2 * numTopics;
+        switch (measure) {
+            case KL_DIVERGENCE:
+                return SimilarityEngine.klDivergence(topics, logTopics, offset1, offset2, numTopics);
+            case JENSEN_SHANNON:
+                return SimilarityEngine.jensenShannon(topics, offset1, offset2, numTopics);
+            default:
+                return SimilarityEngine.hellinger(sqrtTopics, offset1, offset2, numTopics);
+        }
+    }
+
+    /* Call with the write lock held */
+    private void setRow(int doc, double[] distribution, int offset) {
+        for (int topic = 0; topic < numTopics; topic++) {
+            double p = distribution[offset + topic];
+            topics[doc * numTopics + topic] = p;
+            logTopics[doc * numTopics + topic] = Math.log(p);
+            sqrtTopics[doc * numTopics + topic] = Math.sqrt(p);
+        }
+        changedAt[doc] = ++changes;
+    }
+
+    /* Call with the write lock held */
+    private void ensureCapacity(int numDocs) {
+        if (numDocs <= changedAt.length) return;
+        int capacity = Math.max(numDocs, changedAt.length * 2);
+        topics = Arrays.copyOf(topics, capacity * numTopics);
+        logTopics = Arrays.copyOf(logTopics, capacity * numTopics);
+        sqrtTopics = Arrays.copyOf(sqrtTopics, capacity * numTopics);
+        changedAt = Arrays.copyOf(changedAt, capacity);
+    }
+
+    private static void offer(PriorityQueue<TopicNeighbourIndex.Neighbour> best, TopicNeighbourIndex.Neighbour neighbour, int k) {
+        if (best.size() < k) {
+            best.add(neighbour);
+        } else if (neighbour.distance < best.peek().distance) {
+            best.poll();
+            best.add(neighbour);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package peoplecomparison;
+
+import twitter4j.*;
+
+import java.util.*;
+
+/**
+ * Fetches the timelines of users, a page at a time.
+ * Any number of threads can fetch through one fetcher, and they all share one rate limit budget.
+ * Throttled or failed requests are backed off and retried.
+ * Users we already hold an expired feed for can be refreshed with only the statuses newer than
+ * the ones we have (using since_id), to be appended to the cached feed.
+ */
+public class TimelineFetcher {
+
+    // Twitter allows 180 user_timeline requests per 15 minute window
+    public static final int DEFAULT_REQUESTS_PER_WINDOW = 180;
+    public static final int DEFAULT_WINDOW_SECONDS = 15 * 60;
+    // Statuses per page (the API maximum for user_timeline is 200, we've always used 100)
+    private static final int PAGE_SIZE = 100;
+    // How many times to retry a page that failed for a transient reason, and the first backoff (in millis)
+    private static final int MAX_RETRIES = 5;
+    private static final long INITIAL_BACKOFF = 1000;
+    // How many rate limit windows to wait out for one page before giving up on it, in case the source never lets up
+    private static final int MAX_RATE_LIMIT_WAITS = 3;
+
+    private final TimelineSource source;
+    private final RateLimitBudget budget;
+    private final int maxPages;
+    // If set, everything we fetch is also streamed into this model as it arrives
+    private OnlineTopicModel onlineModel;
+
+    public TimelineFetcher(TimelineSource source, int maxPages) {
+        this(source, maxPages, new RateLimitBudget(DEFAULT_REQUESTS_PER_WINDOW, DEFAULT_WINDOW_SECONDS));
+    }
+
+    public TimelineFetcher(TimelineSource source, int maxPages, RateLimitBudget budget) {
+        this.source = source;
+        this.maxPages = maxPages;
+        this.budget = budget;
+    }
+
+    public void setOnlineModel(OnlineTopicModel onlineModel) {
+        this.onlineModel = onlineModel;
+    }
+
+    /**
+     * Takes a Twitter username and returns all the statuses we can get for them, up to maxPages pages
+     */
+    public List<Status> fetch(String screenName) throws TwitterException, InterruptedException {
+        return fetch(screenName, 0);
+    }
+
+    /**
+     * Returns only the statuses newer than sinceId (or everything we can get if sinceId is 0), up to maxPages pages
+     */
+    public List<Status> fetch(String screenName, long sinceId) throws TwitterException, InterruptedException {
+        int pagenum = 1;
+        List<Status> statuses = new ArrayList<Status>();
+        while (pagenum < maxPages) {
+            Paging paging = (sinceId > 0) ? new Paging(pagenum++, PAGE_SIZE, sinceId) : new Paging(pagenum++, PAGE_SIZE);
+            List<Status> page = fetchPage(screenName, paging);
+            if (page.isEmpty()) break;
+            statuses.addAll(page);
+        }
+        Metrics.count("statuses_fetched", statuses.size());
+        if (onlineModel != null) onlineModel.addStatuses(screenName, statuses);
+        if (Metrics.isVerbose(Metrics.NORMAL)) {
+            if (sinceId > 0) System.out.println(statuses.size() + " new statuses of @" + screenName + " retrieved");
+            else System.out.println(statuses.size() + " of @" + screenName + "'s statuses retrieved");
+        }
+        return statuses;
+    }
+
+    /* Returns the highest status ID in the list, or 0 if it's empty */
+    public static long newestStatusId(List<Status> statuses) {
+        long newest = 0;
+        for (Status status : statuses) {
+            if (status.getId() > newest) newest = status.getId();
+        }
+        return newest;
+    }
+
+    /* Gets a single page, waiting on the rate limit and retrying if we get throttled or hit a transient error */
+    private List<Status> fetchPage(String screenName, Paging paging) throws TwitterException, InterruptedException {
+        long backoff = INITIAL_BACKOFF;
+        int waits = 0;
+        for (int attempt = 0; ; attempt++) {
+            budget.acquire();
+            Metrics.count("api_calls");
+            try {
+                List<Status> page = source.getUserTimeline(screenName, paging);
+                if (page instanceof TwitterResponse) budget.update(((TwitterResponse) page).getRateLimitStatus());
+                return page;
+            } catch (TwitterException e) {
+                if (e.exceededRateLimitation() && waits++ < MAX_RATE_LIMIT_WAITS) {
+                    // Doesn't count as an attempt, we just have to wait for the next window
+                    RateLimitStatus status = e.getRateLimitStatus();
+                    budget.exhaust(status != null ? status.getSecondsUntilReset() : e.getRetryAfter());
+                    Metrics.count("api_rate_limited");
+                    attempt--;
+                } else if (attempt < MAX_RETRIES && (e.isCausedByNetworkIssue() || e.getStatusCode() >= 500)) {
+                    Metrics.count("api_retries");
+                    Thread.sleep(backoff);
+                    backoff *= 2;
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package peoplecomparison;
+
+import twitter4j.*;
+
+import java.util.*;
+
+/**
+ * Somewhere we can read a page of a user's timeline from.
+ * Normally this is the Twitter API (see TwitterUtil.getTimelineSource()), but the fetcher only
+ * depends on this interface so it can be pointed at a local stub for load testing.
+ *
+ * If the returned list is also a TwitterResponse then its rate limit status is used to track
+ * how much of the request budget is left in the current window.
+ */
+public interface TimelineSource {
+
+    public List<Status> getUserTimeline(String screenName, Paging paging) throws TwitterException;
+}
@@ -0,0 +1,355 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An approximate nearest neighbour index over the documents' topic distributions, for when there are
+ * too many people to fill in the full n x n similarity matrix.
+ *
+ * This is a hierarchical navigable small world (HNSW) graph. Every document is linked to its closest
+ * documents in a few layers of decreasing density, and a query walks greedily down through the layers
+ * towards its target. The graph is built with Hellinger distance (Euclidean distance between the square
+ * roots of the distributions, so it's a proper metric), and whatever is found is then ranked by the exact
+ * measure we're using. Small corpora are just searched exhaustively.
+ */
+public class TopicNeighbourIndex {
+
+    /* A document and its distance from the source document */
+    public static class Neighbour implements Comparable<Neighbour> {
+        public final int source;
+        public final int target;
+        public final double distance;
+
+        public Neighbour(int source, int target, double distance) {
+            this.source = source;
+            this.target = target;
+            this.distance = distance;
+        }
+
+        public int compareTo(Neighbour other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    // Below this many documents a brute force search is fast enough, and exact
+    private static final int BRUTE_FORCE_LIMIT = 2000;
+    // Links per document on the upper layers (twice this on the bottom layer), and how wide to search while building
+    private static final int MAX_LINKS = 16;
+    private static final int EF_CONSTRUCTION = 64;
+    // How wide to search when querying (at least this, or k if that's bigger)
+    private static final int EF_SEARCH = 64;
+
+    private final double[] topics;
+    private final double[] logTopics;
+    private final double[] sqrtTopics;
+    private final int numDocs;
+    private final int numTopics;
+    private final SimilarityEngine.Measure measure;
+    // links[doc][layer] holds the number of links followed by the linked documents
+    private int[][][] links;
+    private int entryPoint = -1;
+    private int topLayer = -1;
+    // Documents seen so far in the current search, one set per thread so queries can run in parallel
+    private final ThreadLocal<int[]> visited = new ThreadLocal<int[]>();
+    private final ThreadLocal<int[]> visitCounter = new ThreadLocal<int[]>();
+
+    public TopicNeighbourIndex(double[] topics, int numDocs, int numTopics, SimilarityEngine.Measure measure, long seed) {
+        this.topics = topics;
+        this.numDocs = numDocs;
+        this.numTopics = numTopics;
+        this.measure = measure;
+        this.logTopics = new double[topics.length];
+        this.sqrtTopics = new double[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            logTopics[i] = Math.log(topics[i]);
+            sqrtTopics[i] = Math.sqrt(topics[i]);
+        }
+        if (numDocs > BRUTE_FORCE_LIMIT) buildGraph(new Random(seed));
+    }
+
+    public static TopicNeighbourIndex build(ParallelTopicModel model, SimilarityEngine.Measure measure) {
+        return new TopicNeighbourIndex(SimilarityEngine.getTopicMatrix(model), model.getData().size(), model.getNumTopics(), measure, 42);
+    }
+
+    /**
+     * Returns (approximately) the k documents closest to doc, closest first
+     */
+    public List<Neighbour> query(int doc, int k) {
+        if (numDocs <= BRUTE_FORCE_LIMIT) return exactQuery(doc, k);
+
+        // Walk down the layers to the closest document we can find, then search the bottom layer around it
+        int closest = entryPoint;
+        for (int layer = topLayer; layer > 0; layer--) closest = greedyClosest(doc, closest, layer);
+        int[] found = searchLayer(doc, closest, Math.max(EF_SEARCH, k + 1), 0);
+
+        PriorityQueue<Neighbour> best = new PriorityQueue<Neighbour>(k + 1, Collections.reverseOrder());
+        for (int candidate : found) {
+            if (candidate != doc) offer(best, new Neighbour(doc, candidate, distance(doc, candidate)), k);
+        }
+        return sorted(best);
+    }
+
+    /**
+     * Returns the k exact closest documents to doc, by comparing against everyone
+     */
+    public List<Neighbour> exactQuery(int doc, int k) {
+        PriorityQueue<Neighbour> best = new PriorityQueue<Neighbour>(k + 1, Collections.reverseOrder());
+        for (int other = 0; other < numDocs; other++) {
+            if (other != doc) offer(best, new Neighbour(doc, other, distance(doc, other)), k);
+        }
+        return sorted(best);
+    }
+
+    /**
+     * Returns the undirected k nearest neighbour graph: an edge between every document and each of its k nearest
+     * neighbours (each pair only once, with the lower index as the source)
+     */
+    public List<Neighbour> kNearestEdges(final int k) {
+        final List<List<Neighbour>> perDoc = new ArrayList<List<Neighbour>>(Collections.<List<Neighbour>>nCopies(numDocs, null));
+        final int chunk = 256;
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int start = 0; start < numDocs; start += chunk) {
+            final int from = start;
+            tasks.add(new RecursiveAction() {
+                protected void compute() {
+                    for (int doc = from; doc < Math.min(from + chunk, numDocs); doc++) perDoc.set(doc, query(doc, k));
+                }
+            });
+        }
+        final List<RecursiveAction> allTasks = tasks;
+        ForkJoinPool pool = new ForkJoinPool();
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(allTasks);
+            }
+        });
+        pool.shutdown();
+
+        Set<Long> seen = new HashSet<Long>();
+        List<Neighbour> edges = new ArrayList<Neighbour>();
+        for (List<Neighbour> neighbours : perDoc) {
+            for (Neighbour neighbour : neighbours) {
+                int source = Math.min(neighbour.source, neighbour.target);
+                int target = Math.max(neighbour.source, neighbour.target);
+                if (seen.add((long) source * numDocs + target)) edges.add(new Neighbour(source, target, distance(source, target)));
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * The fraction of the exact k nearest neighbours that query() finds, averaged over a sample of documents
+     */
+    public double recall(int k, int sampleSize, Random random) {
+        int found = 0;
+        int total = 0;
+        for (int s = 0; s < sampleSize; s++) {
+            int doc = random.nextInt(numDocs);
+            Set<Integer> approximate = new HashSet<Integer>();
+            for (Neighbour neighbour : query(doc, k)) approximate.add(neighbour.target);
+            for (Neighbour neighbour : exactQuery(doc, k)) {
+                if (approximate.contains(neighbour.target)) found++;
+                total++;
+            }
+        }
+        return (total == 0) ? 1.0 : (double) found / total;
+    }
+
+    public double distance(int doc1, int doc2) {
+        int offset1 = doc1 * numTopics;
+        int offset2 = doc2 * numTopics;
+        switch (measure) {
+            case KL_DIVERGENCE:
+                return SimilarityEngine.klDivergence(topics, logTopics, offset1, offset2, numTopics);
+            case JENSEN_SHANNON:
+                return SimilarityEngine.jensenShannon(topics, offset1, offset2, numTopics);
+            default:
+                return SimilarityEngine.hellinger(sqrtTopics, offset1, offset2, numTopics);
+        }
+    }
+
+    public int size() {
+        return numDocs;
+    }
+
+    /* Squared Euclidean distance between square roots, which orders documents the same way Hellinger does */
+    private double graphDistance(int doc1, int doc2) {
+        int offset1 = doc1 * numTopics;
+        int offset2 = doc2 * numTopics;
+        double sum = 0.0;
+        for (int t = 0; t < numTopics; t++) {
+            double diff = sqrtTopics[offset1 + t] - sqrtTopics[offset2 + t];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private void buildGraph(Random random) {
+        links = new int[numDocs][][];
+        double levelMultiplier = 1 / Math.log(MAX_LINKS);
+        for (int doc = 0; doc < numDocs; doc++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            links[doc] = new int[level + 1][];
+            for (int layer = 0; layer <= level; layer++) links[doc][layer] = new int[maxLinks(layer) + 1];
+
+            if (entryPoint < 0) {
+                entryPoint = doc;
+                topLayer = level;
+                continue;
+            }
+            int closest = entryPoint;
+            for (int layer = topLayer; layer > level; layer--) closest = greedyClosest(doc, closest, layer);
+            for (int layer = Math.min(level, topLayer); layer >= 0; layer--) {
+                int[] found = searchLayer(doc, closest, EF_CONSTRUCTION, layer);
+                int[] neighbours = selectNeighbours(doc, found, maxLinks(layer));
+                for (int neighbour : neighbours) {
+                    addLink(doc, neighbour, layer);
+                    addLink(neighbour, doc, layer);
+                }
+                closest = found[0];
+            }
+            if (level > topLayer) {
+                topLayer = level;
+                entryPoint = doc;
+            }
+        }
+    }
+
+    private static int maxLinks(int layer) {
+        return (layer == 0) ? 2 * MAX_LINKS : MAX_LINKS;
+    }
+
+    /* Adds a link from doc to neighbour, pruning doc's links back down if there are too many */
+    private void addLink(int doc, int neighbour, int layer) {
+        int[] docLinks = links[doc][layer];
+        int count = docLinks[0];
+        if (count < docLinks.length - 1) {
+            docLinks[++count] = neighbour;
+            docLinks[0] = count;
+            return;
+        }
+        int[] candidates = Arrays.copyOfRange(docLinks, 1, count + 2);
+        candidates[count] = neighbour;
+        sortByDistance(doc, candidates);
+        int[] kept = selectNeighbours(doc, candidates, count);
+        docLinks[0] = kept.length;
+        System.arraycopy(kept, 0, docLinks, 1, kept.length);
+    }
+
+    /*
+     * Picks up to max neighbours from candidates (sorted closest first), skipping any that are closer to an
+     * already picked neighbour than to doc, so the links spread out in different directions
+     */
+    private int[] selectNeighbours(int doc, int[] candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.length)];
+        int count = 0;
+        for (int c = 0; c < candidates.length && count < selected.length; c++) {
+            int candidate = candidates[c];
+            double toDoc = graphDistance(doc, candidate);
+            boolean keep = true;
+            for (int s = 0; s < count && keep; s++) {
+                if (graphDistance(selected[s], candidate) < toDoc) keep = false;
+            }
+            if (keep) selected[count++] = candidate;
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    /* Follows links on one layer for as long as they get us closer to doc */
+    private int greedyClosest(int doc, int start, int layer) {
+        int closest = start;
+        double closestDistance = graphDistance(doc, closest);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] closestLinks = links[closest][layer];
+            for (int l = 1; l <= closestLinks[0]; l++) {
+                double d = graphDistance(doc, closestLinks[l]);
+                if (d < closestDistance) {
+                    closestDistance = d;
+                    closest = closestLinks[l];
+                    improved = true;
+                }
+            }
+        }
+        return closest;
+    }
+
+    /* Best first search of one layer from start, returning the ef closest documents found, closest first */
+    private int[] searchLayer(final int doc, int start, int ef, int layer) {
+        int[] seen = visited.get();
+        int[] counter = visitCounter.get();
+        if (seen == null) {
+            seen = new int[numDocs];
+            counter = new int[1];
+            visited.set(seen);
+            visitCounter.set(counter);
+        }
+        int mark = ++counter[0];
+
+        // Candidates to expand (closest first) and results so far (furthest first), as distance/document pairs
+        PriorityQueue<double[]> toExpand = new PriorityQueue<double[]>(ef, new Comparator<double[]>() {
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        PriorityQueue<double[]> results = new PriorityQueue<double[]>(ef + 1, new Comparator<double[]>() {
+            public int compare(double[] a, double[] b) {
+                return Double.compare(b[0], a[0]);
+            }
+        });
+        double[] first = { graphDistance(doc, start), start };
+        seen[start] = mark;
+        toExpand.add(first);
+        results.add(first);
+        while (!toExpand.isEmpty()) {
+            double[] current = toExpand.poll();
+            if (current[0] > results.peek()[0] && results.size() >= ef) break;
+            int[] currentLinks = links[(int) current[1]][layer];
+            for (int l = 1; l <= currentLinks[0]; l++) {
+                int neighbour = currentLinks[l];
+                if (seen[neighbour] == mark) continue;
+                seen[neighbour] = mark;
+                double d = graphDistance(doc, neighbour);
+                if (results.size() < ef || d < results.peek()[0]) {
+                    double[] entry = { d, neighbour };
+                    toExpand.add(entry);
+                    results.add(entry);
+                    if (results.size() > ef) results.poll();
+                }
+            }
+        }
+
+        int[] found = new int[results.size()];
+        for (int i = found.length - 1; i >= 0; i--) found[i] = (int) results.poll()[1];
+        return found;
+    }
+
+    private void sortByDistance(final int doc, int[] docs) {
+        Integer[] boxed = new Integer[docs.length];
+        for (int i = 0; i < docs.length; i++) boxed[i] = docs[i];
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(graphDistance(doc, a), graphDistance(doc, b));
+            }
+        });
+        for (int i = 0; i < docs.length; i++) docs[i] = boxed[i];
+    }
+
+    private static void offer(PriorityQueue<Neighbour> best, Neighbour neighbour, int k) {
+        if (best.size() < k) best.add(neighbour);
+        else if (neighbour.distance < best.peek().distance) {
+            best.poll();
+            best.add(neighbour);
+        }
+    }
+
+    private static List<Neighbour> sorted(PriorityQueue<Neighbour> best) {
+        List<Neighbour> result = new ArrayList<Neighbour>(best);
+        Collections.sort(result);
+        return result;
+    }
+}
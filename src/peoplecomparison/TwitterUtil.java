@@ -5,7 +5,6 @@ import twitter4j.auth.*;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
 
 /**
  * Utility class, can't be instantiated.
@@ -17,48 +16,71 @@ import java.util.regex.*;
 public final class TwitterUtil {
 
     private static final String twitterPropFile = "twitter.properties";
+    // What twitter.properties holds in place of each key until someone puts theirs in
+    private static final String PLACEHOLDER_KEY = "***PutKeyHere***";
+    private static final String[] KEY_PROPERTIES = {"CONSUMER_KEY", "CONSUMER_SECRET", "ACCESS_TOKEN", "ACCESS_TOKEN_SECRET"};
     private static Twitter twitter;
     private static Properties prop;
+    // Shared by everything that talks to the API so we stay inside the rate limit
+    private static final RateLimitBudget budget = new RateLimitBudget(TimelineFetcher.DEFAULT_REQUESTS_PER_WINDOW, TimelineFetcher.DEFAULT_WINDOW_SECONDS);
+    // Scratch space for cleanTweet, one per thread so the fetcher threads can clean in parallel
+    private static final ThreadLocal<StringBuilder> cleanBuffer = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder(512);
+        }
+    };
 
     private TwitterUtil() {
     }
 
     /**
      * Takes a Twitter username and returns a list of Mallet Statuses
-     * Also creates a text file on the hard drive with all the tweets (called "username_Tweets.txt)
-     * TODO: Move this method to non-utility class and setup for concurrency?
+     * For fetching lots of users at once, use a TimelineFetcher instead
      */
     public static List<Status> getTweets(String screenName) throws TwitterException {
-        int pagenum = 1;
-        List<Status> statuses = new ArrayList();
+        try {
+            return new TimelineFetcher(getTimelineSource(), getMaxPages(), budget).fetch(screenName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TwitterException(e);
+        }
+    }
+
+    /* Returns a timeline source backed by our (shared) authorised Twitter instance */
+    public static TimelineSource getTimelineSource() {
         if (twitter == null) setupTwitter();
-        int maxPages = Integer.parseInt(prop.getProperty("maxPages"));
+        return new TimelineSource() {
+            public List<Status> getUserTimeline(String screenName, Paging paging) throws TwitterException {
+                return twitter.getUserTimeline(screenName, paging);
+            }
+        };
+    }
 
-        while (pagenum<maxPages) {
-            int size = statuses.size();
-            Paging page = new Paging(pagenum++, 100);
-            statuses.addAll(twitter.getUserTimeline(screenName, page));
-            if (statuses.size() == size) break;
-        }
-        System.out.println(statuses.size() + " of @" + screenName + "'s statuses retrieved");
+    public static RateLimitBudget getRateLimitBudget() {
+        return budget;
+    }
+
+    public static int getMaxPages() {
+        return Integer.parseInt(getProperties().getProperty("maxPages"));
+    }
 
-        return statuses;
+    public static int getFetchThreads() {
+        return Integer.parseInt(getProperties().getProperty("fetchThreads", "4"));
+    }
+
+    /* Whether there are real credentials to set up the API with, not missing or still the placeholders (setupTwitter gives up and exits without them) */
+    public static boolean isConfigured() {
+        for (String key : KEY_PROPERTIES) {
+            String value = getProperties().getProperty(key, "").trim();
+            if (value.isEmpty() || value.equals(PLACEHOLDER_KEY)) return false;
+        }
+        return true;
     }
 
     /* Sets up the authorisation of the API */
-    public static void setupTwitter() {
+    public static synchronized void setupTwitter() {
         if (twitter == null) {
-            prop = new Properties();
-            InputStream inputStream = TwitterUtil.class.getResourceAsStream(twitterPropFile);
-            if (inputStream != null) {
-                try {
-                    prop.load(inputStream);
-                } catch (IOException e) {
-                    System.out.println("Property file '" + twitterPropFile + "' not found in the classpath");
-                    e.printStackTrace();
-                    System.exit(-1);
-                }
-            }
+            Properties prop = getProperties();
             String CONSUMER_KEY = prop.getProperty("CONSUMER_KEY");
             String CONSUMER_SECRET = prop.getProperty("CONSUMER_SECRET");
             String ACCESS_TOKEN = prop.getProperty("ACCESS_TOKEN");
@@ -76,28 +98,106 @@ public final class TwitterUtil {
         }
     }
 
-    /* Removes URLs, users and "RT" from a tweet */
+    /* Reads the properties file the first time they're needed, without setting up the API (it's fine for it to be missing until then) */
+    private static synchronized Properties getProperties() {
+        if (prop == null) {
+            prop = new Properties();
+            InputStream inputStream = TwitterUtil.class.getResourceAsStream(twitterPropFile);
+            if (inputStream != null) {
+                try {
+                    prop.load(inputStream);
+                } catch (IOException e) {
+                    System.out.println("Property file '" + twitterPropFile + "' not found in the classpath");
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            }
+        }
+        return prop;
+    }
+
+    /*
+     * Removes URLs, users and "RT:" from a tweet (URLs run from "http" to the next space, users are @names at the start
+     * of the text or after whitespace, along with that whitespace), writing into a reusable per-thread buffer.
+     */
     public static String cleanTweet(String tweetText)
     {
-        // Remove URLs
-        while (tweetText.contains("http")) {
-            int indexOfHttp = tweetText.indexOf("http");
-            int endPoint = (tweetText.indexOf(" ", indexOfHttp) != -1) ? tweetText.indexOf(" ", indexOfHttp) : tweetText.length();
-            String url = tweetText.substring(indexOfHttp, endPoint);
-            tweetText = tweetText.replace(url,"");
+        StringBuilder out = cleanBuffer.get();
+        out.setLength(0);
+        cleanTweet(tweetText, out);
+        return out.toString();
+    }
+
+    /*
+     * Cleans a tweet as above, appending it straight onto the end of a buffer so a whole feed can be built without a String per tweet.
+     * This is a single pass over the text, so every copy of a URL or user goes as we reach it. (The original version replaced
+     * each one everywhere it appeared, which could leave a double space, a user trimmed of its space, or the rest of a
+     * longer URL or handle behind. CleanTweetBenchmark keeps it to compare against.)
+     */
+    public static void cleanTweet(String tweetText, StringBuilder out)
+    {
+        int base = out.length();
+        int length = tweetText.length();
+        // The previous character once URLs are removed (users are matched against this, not against what we've written)
+        char prev = 0;
+        boolean atStart = true;
+        int i = 0;
+        while (i < length) {
+            char c = tweetText.charAt(i);
+
+            // Remove URLs
+            if (c == 'h' && tweetText.startsWith("http", i)) {
+                int end = tweetText.indexOf(' ', i);
+                i = (end == -1) ? length : end;
+                continue;
+            }
+
+            // Remove Users
+            if (c == '@' && (atStart || isSpace(prev))) {
+                int handleStart = i;
+                while (handleStart < length && tweetText.charAt(handleStart) == '@') handleStart++;
+                int handleEnd = handleStart;
+                while (handleEnd < length && isHandleChar(tweetText.charAt(handleEnd)) && !tweetText.startsWith("http", handleEnd)) handleEnd++;
+                if (handleEnd > handleStart) {
+                    if (!atStart) out.setLength(out.length() - 1); // The whitespace before the user goes too
+                    prev = tweetText.charAt(handleEnd - 1);
+                    atStart = false;
+                    i = handleEnd;
+                    continue;
+                }
+            }
+
+            out.append(c);
+            prev = c;
+            atStart = false;
+            i++;
         }
 
-        // Remove Users
-        String patternStr = "(?:\\s|\\A)[@]+([A-Za-z0-9-_]+)";
-        Pattern pattern = Pattern.compile(patternStr);
-        Matcher matcher = pattern.matcher(tweetText);
-        while (matcher.find()) {
-            tweetText = tweetText.replaceAll(matcher.group(),"").trim();
+        // Remove "RT:", compacting the buffer in place
+        int written = base;
+        for (int read = base; read < out.length(); read++) {
+            if (out.charAt(read) == 'R' && read + 2 < out.length() && out.charAt(read + 1) == 'T' && out.charAt(read + 2) == ':') {
+                read += 2;
+                continue;
+            }
+            out.setCharAt(written++, out.charAt(read));
         }
+        out.setLength(written);
 
-        // Remove "RT:"
-        tweetText = tweetText.replaceAll("RT:","").trim();
+        // Trim
+        int start = base, end = out.length();
+        while (start < end && out.charAt(start) <= ' ') start++;
+        while (end > start && out.charAt(end - 1) <= ' ') end--;
+        out.setLength(end);
+        if (start > base) out.delete(base, start);
+    }
+
+    /* The characters the regex \\s matches */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
 
-        return tweetText;
+    private static boolean isHandleChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
     }
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+package peoplecomparison;
+
+import cc.mallet.types.*;
+
+import java.util.*;
+
+/**
+ * Drops words that are too rare or too common to help the topic model, and re-indexes what's left into a compact alphabet.
+ *
+ * The pipe keeps every word of three or more letters that isn't a stopword, so the alphabet fills up with one-off
+ * words and typos. Each of those costs the sampler a row of counts and a share of every iteration, and none of them
+ * can say anything about what two people have in common. Words used by nearly everyone don't either.
+ *
+ * Term and document frequencies are counted as instances are added (one pass, nothing held per document), then
+ * prune() builds a new InstanceList over an alphabet holding only the words that made the cut.
+ */
+public class VocabularyPruner {
+
+    private final int minDocFrequency;
+    private final double maxDocRatio;
+
+    // Indexed by the pipe alphabet's word IDs, and grown as it grows
+    private int[] termFrequency = new int[1024];
+    private int[] docFrequency = new int[1024];
+    // The last document each word was counted in, so each document only counts once towards a word's document frequency
+    private int[] lastDoc = new int[1024];
+    private int numDocs = 0;
+    private long numTokens = 0;
+
+    // What the last prune() did
+    private int vocabularyBefore;
+    private int vocabularyAfter;
+    private int droppedRare;
+    private int droppedCommon;
+    private long tokensAfter;
+    private List<String> commonWords = new ArrayList<String>();
+
+    /**
+     * @param minDocFrequency keep only words used by at least this many people
+     * @param maxDocRatio     and by no more than this fraction of them
+     */
+    public VocabularyPruner(int minDocFrequency, double maxDocRatio) {
+        this.minDocFrequency = minDocFrequency;
+        this.maxDocRatio = maxDocRatio;
+        Arrays.fill(lastDoc, -1);
+    }
+
+    /**
+     * Counts the words in one more document
+     */
+    public void count(Instance instance) {
+        FeatureSequence tokens = (FeatureSequence) instance.getData();
+        int[] features = tokens.getFeatures();
+        for (int i = 0; i < tokens.getLength(); i++) {
+            int word = features[i];
+            if (word >= termFrequency.length) grow(Math.max(word + 1, termFrequency.length * 2));
+            termFrequency[word]++;
+            if (lastDoc[word] != numDocs) {
+                lastDoc[word] = numDocs;
+                docFrequency[word]++;
+            }
+        }
+        numTokens += tokens.getLength();
+        numDocs++;
+    }
+
+    /**
+     * Returns the counted instances (which must be the ones given to count(), in the same order) with only the words we're keeping
+     */
+    public InstanceList prune(InstanceList instances) {
+        Alphabet alphabet = instances.getDataAlphabet();
+        vocabularyBefore = alphabet.size();
+        if (vocabularyBefore > termFrequency.length) grow(vocabularyBefore);
+
+        // With only a handful of people the limits can't both apply, so loosen them rather than keep nothing
+        int minDocs = Math.min(minDocFrequency, numDocs);
+        int maxDocs = Math.max(minDocs, (int) (maxDocRatio * numDocs));
+
+        // Map each word we keep to its new index, in the order the words were first seen
+        Alphabet compact = new Alphabet();
+        int[] newIndex = new int[vocabularyBefore];
+        droppedRare = 0;
+        droppedCommon = 0;
+        List<Integer> common = new ArrayList<Integer>();
+        for (int word = 0; word < vocabularyBefore; word++) {
+            if (docFrequency[word] < minDocs) {
+                newIndex[word] = -1;
+                droppedRare++;
+            } else if (docFrequency[word] > maxDocs) {
+                newIndex[word] = -1;
+                droppedCommon++;
+                common.add(word);
+            } else {
+                newIndex[word] = compact.lookupIndex(alphabet.lookupObject(word));
+            }
+        }
+        vocabularyAfter = compact.size();
+
+        // Remember the most widely used words we dropped, so the report can show what went
+        Collections.sort(common, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(docFrequency[b], docFrequency[a]);
+            }
+        });
+        commonWords.clear();
+        for (int i = 0; i < Math.min(10, common.size()); i++) commonWords.add((String) alphabet.lookupObject(common.get(i)));
+
+        InstanceList pruned = new InstanceList(compact, null);
+        tokensAfter = 0;
+        int[] buffer = new int[0];
+        for (Instance instance : instances) {
+            FeatureSequence tokens = (FeatureSequence) instance.getData();
+            int[] features = tokens.getFeatures();
+            if (buffer.length < tokens.getLength()) buffer = new int[tokens.getLength()];
+            int length = 0;
+            for (int i = 0; i < tokens.getLength(); i++) {
+                if (newIndex[features[i]] >= 0) buffer[length++] = newIndex[features[i]];
+            }
+            // Copied into a sequence of exactly the right size, so there's no slack left over from the words we dropped
+            FeatureSequence kept = new FeatureSequence(compact, buffer, length);
+            tokensAfter += length;
+            pruned.add(new Instance(kept, null, instance.getName(), null));
+        }
+        return pruned;
+    }
+
+    public int getVocabularyBefore() {
+        return vocabularyBefore;
+    }
+
+    public int getVocabularyAfter() {
+        return vocabularyAfter;
+    }
+
+    public long getTokensBefore() {
+        return numTokens;
+    }
+
+    public long getTokensAfter() {
+        return tokensAfter;
+    }
+
+    public void printReport() {
+        System.out.printf(Locale.US, "Vocabulary pruned from %d to %d words (%.1f%%): %d used by fewer than %d people, %d by more than %.0f%% of them%n",
+                vocabularyBefore, vocabularyAfter, percent(vocabularyAfter, vocabularyBefore), droppedRare, Math.min(minDocFrequency, numDocs), droppedCommon, maxDocRatio * 100);
+        System.out.printf(Locale.US, "Tokens pruned from %d to %d (%.1f%%)%n", numTokens, tokensAfter, percent(tokensAfter, numTokens));
+        if (!commonWords.isEmpty()) System.out.println("Most common words dropped: " + commonWords);
+    }
+
+    private static double percent(long part, long whole) {
+        return (whole == 0) ? 100 : 100.0 * part / whole;
+    }
+
+    private void grow(int size) {
+        int oldSize = termFrequency.length;
+        termFrequency = Arrays.copyOf(termFrequency, size);
+        docFrequency = Arrays.copyOf(docFrequency, size);
+        lastDoc = Arrays.copyOf(lastDoc, size);
+        Arrays.fill(lastDoc, oldSize, size, -1);
+    }
+}
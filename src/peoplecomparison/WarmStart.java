@@ -0,0 +1,144 @@
+package peoplecomparison;
+
+import cc.mallet.topics.*;
+import cc.mallet.types.*;
+
+import java.util.*;
+
+/**
+ * Starts a new topic model from where the previous one left off, rather than from random topic assignments.
+ *
+ * Tokens in documents that haven't changed since the previous model was trained keep the topic they had. Tokens in new
+ * or changed documents are given a topic drawn from what the previous model thinks of that word (its word-topic counts
+ * and alpha), and only words it never saw get a random topic. The counts are then rebuilt from those assignments, so
+ * a short run of sampling is enough to settle the new documents in instead of a full training run.
+ */
+public class WarmStart {
+
+    private final ParallelTopicModel previous;
+    private final Map<String, Integer> previousDocs = new HashMap<String, Integer>();
+    private final Random random;
+
+    // What the last initialize() did
+    private int keptDocs;
+    private long keptTokens;
+    private long seededTokens;
+    private long randomTokens;
+
+    public WarmStart(ParallelTopicModel previous, int seed) {
+        this.previous = previous;
+        this.random = new Random(seed);
+        for (int doc = 0; doc < previous.getData().size(); doc++) {
+            previousDocs.put((String) previous.getData().get(doc).instance.getName(), doc);
+        }
+    }
+
+    /**
+     * Creates a model for the instances with the previous model's topics and hyperparameters, keeping the topic
+     * assignments of the named unchanged documents and seeding the rest from the previous model
+     */
+    public ParallelTopicModel initialize(InstanceList instances, Set<String> unchanged, int numThreads) {
+        ParallelTopicModel model = new ParallelTopicModel(previous.getNumTopics(), previous.alphaSum, previous.beta);
+        model.addInstances(instances);
+        model.setNumThreads(numThreads);
+        model.alpha = previous.alpha.clone();
+        model.alphaSum = previous.alphaSum;
+
+        // Both models' alphabets may have been pruned differently, so map words across by name once up front
+        Alphabet alphabet = model.getAlphabet();
+        Alphabet previousAlphabet = previous.getAlphabet();
+        int[] previousType = new int[alphabet.size()];
+        for (int type = 0; type < previousType.length; type++) {
+            int index = previousAlphabet.lookupIndex(alphabet.lookupObject(type), false);
+            previousType[type] = (index < previous.numTypes) ? index : -1;
+        }
+
+        keptDocs = 0;
+        keptTokens = 0;
+        seededTokens = 0;
+        randomTokens = 0;
+        double[] weights = new double[model.getNumTopics()];
+        for (TopicAssignment assignment : model.getData()) {
+            int[] tokens = ((FeatureSequence) assignment.instance.getData()).getFeatures();
+            int[] topics = assignment.topicSequence.getFeatures();
+            int length = assignment.topicSequence.getLength();
+            Integer doc = previousDocs.get((String) assignment.instance.getName());
+            boolean kept = false;
+            if (doc != null && unchanged.contains(assignment.instance.getName())) {
+                kept = true;
+                keptDocs++;
+                keepTopics(previous.getData().get(doc), tokens, topics, length, previousType);
+            }
+            for (int position = 0; position < length; position++) {
+                // Anything keepTopics() couldn't match up is left as UNASSIGNED_TOPIC for us to seed
+                if (kept && topics[position] != ParallelTopicModel.UNASSIGNED_TOPIC) {
+                    keptTokens++;
+                    continue;
+                }
+                int type = previousType[tokens[position]];
+                if (type >= 0 && seedWeights(type, weights)) {
+                    topics[position] = sample(weights);
+                    seededTokens++;
+                } else {
+                    topics[position] = random.nextInt(weights.length);
+                    randomTokens++;
+                }
+            }
+        }
+        model.buildInitialTypeTopicCounts();
+        return model;
+    }
+
+    public void printReport() {
+        System.out.printf(Locale.US, "Warm start kept %d unchanged documents (%d tokens), seeded %d tokens from the previous model and %d at random%n",
+                keptDocs, keptTokens, seededTokens, randomTokens);
+    }
+
+    /*
+     * Copies the previous topic of every token we can find in the previous version of the document. The two token
+     * sequences come from the same feed but may have been pruned differently, so walk them in step and match words
+     * up in order. Tokens with no match are marked unassigned.
+     */
+    private static void keepTopics(TopicAssignment before, int[] tokens, int[] topics, int length, int[] previousType) {
+        int[] beforeTokens = ((FeatureSequence) before.instance.getData()).getFeatures();
+        int[] beforeTopics = before.topicSequence.getFeatures();
+        int beforeLength = before.topicSequence.getLength();
+        int cursor = 0;
+        for (int position = 0; position < length; position++) {
+            int type = previousType[tokens[position]];
+            int match = cursor;
+            while (type >= 0 && match < beforeLength && beforeTokens[match] != type) match++;
+            if (type >= 0 && match < beforeLength) {
+                topics[position] = beforeTopics[match];
+                cursor = match + 1;
+            } else {
+                topics[position] = ParallelTopicModel.UNASSIGNED_TOPIC;
+            }
+        }
+    }
+
+    /* Fills weights with how likely each topic is for a word under the previous model, returning false if it never saw the word */
+    private boolean seedWeights(int type, double[] weights) {
+        int[] counts = previous.typeTopicCounts[type];
+        if (counts.length == 0 || counts[0] == 0) return false;
+        for (int topic = 0; topic < weights.length; topic++) {
+            weights[topic] = previous.alpha[topic] * previous.beta / (previous.tokensPerTopic[topic] + previous.betaSum);
+        }
+        // Mallet packs each count into the high bits and the topic into the low bits, largest count first
+        for (int count : counts) {
+            if (count == 0) break;
+            int topic = count & previous.topicMask;
+            weights[topic] += previous.alpha[topic] * (count >> previous.topicBits) / (previous.tokensPerTopic[topic] + previous.betaSum);
+        }
+        return true;
+    }
+
+    private int sample(double[] weights) {
+        double total = 0;
+        for (double weight : weights) total += weight;
+        double sample = random.nextDouble() * total;
+        int topic = 0;
+        while (topic < weights.length - 1 && (sample -= weights[topic]) > 0) topic++;
+        return topic;
+    }
+}